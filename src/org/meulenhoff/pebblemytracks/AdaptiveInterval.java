@@ -0,0 +1,62 @@
+package org.meulenhoff.pebblemytracks;
+
+// interval between two updates of the Pebble. It drops to the minimum when the
+// speed or heading changes quickly and doubles, up to the maximum, while the
+// values are stable or there is no GPS fix.
+public class AdaptiveInterval {
+	public static final double SPEED_CHANGE = 0.5; // m/s
+	public static final double HEADING_CHANGE = 15; // degrees
+
+	private long minInterval;
+	private long maxInterval;
+	private long interval;
+
+	private double lastSpeed;
+	private double lastHeading;
+
+	public AdaptiveInterval(long minInterval, long maxInterval) {
+		setBounds(minInterval, maxInterval);
+	}
+
+	public synchronized void setBounds(long minInterval, long maxInterval) {
+		this.minInterval = minInterval;
+		this.maxInterval = Math.max(minInterval, maxInterval);
+		interval = minInterval;
+	}
+
+	// back to the minimum interval, e.g. after a command from the watch
+	public synchronized void reset() {
+		interval = minInterval;
+	}
+
+	public synchronized long getInterval() {
+		return interval;
+	}
+
+	// determine the next interval from the latest sports data
+	public synchronized long next(SportsData sportsData) {
+		double speed = sportsData.getSpeed();
+		double heading = sportsData.getHeading();
+
+		if ( !sportsData.getGpsStatus() ) {
+			backoff();
+		} else if (( Math.abs(speed - lastSpeed) > SPEED_CHANGE )||( headingChange(heading, lastHeading) > HEADING_CHANGE )) {
+			interval = minInterval;
+		} else {
+			backoff();
+		}
+
+		lastSpeed = speed;
+		lastHeading = heading;
+		return interval;
+	}
+
+	private void backoff() {
+		interval = Math.min(interval * 2, maxInterval);
+	}
+
+	private static double headingChange(double a, double b) {
+		double d = Math.abs(a - b) % 360;
+		return d > 180 ? 360 - d : d;
+	}
+}
@@ -0,0 +1,90 @@
+package org.meulenhoff.pebblemytracks;
+
+// encodes the field values for the binary wire format into a reusable byte
+// buffer: fixed-point little-endian int16 and int32 values, clamped to their
+// range. Like FieldFormatter, the buffer can be compared with the previously
+// sent array before a new array is created.
+public class BinaryFieldEncoder {
+	private byte[] buffer;
+	private int length;
+
+	public BinaryFieldEncoder() {
+		buffer = new byte[64];
+		length = 0;
+	}
+
+	public void reset() {
+		length = 0;
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public BinaryFieldEncoder putByte(int value) {
+		ensureCapacity(1);
+		buffer[length++] = (byte)value;
+		return this;
+	}
+
+	// value multiplied by scale and rounded, e.g. scale 10 for one decimal
+	public BinaryFieldEncoder putInt16(double value, int scale) {
+		return putInt16(round(value * scale, Short.MIN_VALUE, Short.MAX_VALUE));
+	}
+
+	public BinaryFieldEncoder putInt16(long value) {
+		int v = (int)Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+		ensureCapacity(2);
+		buffer[length++] = (byte)v;
+		buffer[length++] = (byte)( v >> 8 );
+		return this;
+	}
+
+	public BinaryFieldEncoder putInt32(double value, int scale) {
+		return putInt32(round(value * scale, Integer.MIN_VALUE, Integer.MAX_VALUE));
+	}
+
+	public BinaryFieldEncoder putInt32(long value) {
+		int v = (int)Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, value));
+		ensureCapacity(4);
+		buffer[length++] = (byte)v;
+		buffer[length++] = (byte)( v >> 8 );
+		buffer[length++] = (byte)( v >> 16 );
+		buffer[length++] = (byte)( v >> 24 );
+		return this;
+	}
+
+	// NaN is encoded as 0
+	private static long round(double value, long min, long max) {
+		if ( Double.isNaN(value) ) {
+			return 0;
+		}
+		return Math.max(min, Math.min(max, Math.round(value)));
+	}
+
+	public boolean contentEquals(byte[] b) {
+		if (( b == null )||( b.length != length )) {
+			return false;
+		}
+		for ( int i = 0; i < length; i++ ) {
+			if ( b[i] != buffer[i] ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public byte[] toByteArray() {
+		byte[] result = new byte[length];
+		System.arraycopy(buffer, 0, result, 0, length);
+		return result;
+	}
+
+	private void ensureCapacity(int n) {
+		if ( length + n > buffer.length ) {
+			byte[] larger = new byte[Math.max(buffer.length * 2, length + n)];
+			System.arraycopy(buffer, 0, larger, 0, length);
+			buffer = larger;
+		}
+	}
+}
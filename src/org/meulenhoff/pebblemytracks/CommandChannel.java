@@ -0,0 +1,32 @@
+package org.meulenhoff.pebblemytracks;
+
+// hands the commands received from the watch to the running service without
+// an Intent round trip. The service registers itself while it is running,
+// when nothing is registered the receiver falls back to startService.
+public class CommandChannel {
+	// argument not present in the message
+	public static final int ARG_NONE = -1;
+
+	public interface Sink {
+		// time is the SystemClock.elapsedRealtime() at which the message was
+		// received, returns false when the command was not accepted
+		public boolean offer(int cmd, int arg1, int arg2, long time);
+	}
+
+	private static volatile Sink sink;
+
+	public static synchronized void register(Sink s) {
+		sink = s;
+	}
+
+	public static synchronized void unregister(Sink s) {
+		if ( sink == s ) {
+			sink = null;
+		}
+	}
+
+	public static boolean offer(int cmd, int arg1, int arg2, long time) {
+		Sink s = sink;
+		return ( s != null )&&( s.offer(cmd, arg1, arg2, time) );
+	}
+}
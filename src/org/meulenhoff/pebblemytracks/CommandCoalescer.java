@@ -0,0 +1,67 @@
+package org.meulenhoff.pebblemytracks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// collects the track commands of bursty button presses on the watch. Within
+// WINDOW ms a repeated command is dropped and a command that undoes the
+// previous one (pause -> resume, start -> stop) cancels both. The remaining
+// commands are released once no command arrived for WINDOW ms.
+public class CommandCoalescer {
+	public static final long WINDOW = 300;
+
+	// pairs of commands that undo each other, in either order
+	private int[][] undoPairs;
+	private List<Integer> pending = new ArrayList<Integer>();
+	private long lastTime;
+
+	public CommandCoalescer(int[][] undoPairs) {
+		this.undoPairs = undoPairs;
+	}
+
+	// add a command received at time (ms), returns the time at which the
+	// pending commands can be released
+	public long offer(int cmd, long time) {
+		boolean recent = ( !pending.isEmpty() )&&( time - lastTime < WINDOW );
+		int last = recent ? pending.get(pending.size() - 1) : cmd;
+
+		if (( recent )&&( last == cmd )) {
+			// double press
+		} else if (( recent )&&( cancels(last, cmd) )) {
+			pending.remove(pending.size() - 1);
+		} else {
+			pending.add(cmd);
+		}
+		lastTime = time;
+		return getReleaseTime();
+	}
+
+	// time at which the pending commands can be released
+	public long getReleaseTime() {
+		return lastTime + WINDOW;
+	}
+
+	public boolean isEmpty() {
+		return pending.isEmpty();
+	}
+
+	// returns the pending commands in order of arrival when the window
+	// passed, null otherwise
+	public List<Integer> poll(long time) {
+		if (( pending.isEmpty() )||( time - lastTime < WINDOW )) {
+			return null;
+		}
+		List<Integer> result = pending;
+		pending = new ArrayList<Integer>();
+		return result;
+	}
+
+	private boolean cancels(int previous, int cmd) {
+		for ( int[] pair : undoPairs ) {
+			if ((( previous == pair[0] )&&( cmd == pair[1] ))||(( previous == pair[1] )&&( cmd == pair[0] ))) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
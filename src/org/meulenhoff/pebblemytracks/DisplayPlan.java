@@ -0,0 +1,435 @@
+package org.meulenhoff.pebblemytracks;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import org.meulenhoff.pebblemytracks.MyAppSettings.ParameterType;
+
+// the fields of the watch apps compiled for one set of preferences. The unit
+// factors and formats are chosen once when the preferences change, so an
+// update only runs through the array of fields without switching on the
+// parameter type or the unit system.
+public class DisplayPlan {
+	private interface Quantity {
+		public double get(SportsData data);
+	}
+
+	private static abstract class Field {
+		abstract void render(SportsData data, FieldFormatter out);
+
+		// binary wire format, see PebbleSportsService.MSG_SET_BINARY_VALUES
+		abstract void encode(SportsData data, BinaryFieldEncoder out);
+	}
+
+	// fixed number of decimals, int16 multiplied by scale
+	private static class FixedField extends Field {
+		private Quantity quantity;
+		private double factor;
+		private int decimals;
+		private int scale;
+
+		FixedField(Quantity quantity, double factor, int decimals, int scale) {
+			this.quantity = quantity;
+			this.factor = factor;
+			this.decimals = decimals;
+			this.scale = scale;
+		}
+
+		void render(SportsData data, FieldFormatter out) {
+			out.appendFixed(quantity.get(data) * factor, decimals);
+		}
+
+		void encode(SportsData data, BinaryFieldEncoder out) {
+			out.putInt16(quantity.get(data) * factor, scale);
+		}
+	}
+
+	// one decimal up to 100 units, int32 in hundredths
+	private static class DistanceField extends Field {
+		private Quantity quantity;
+		private double factor;
+
+		DistanceField(Quantity quantity, double factor) {
+			this.quantity = quantity;
+			this.factor = factor;
+		}
+
+		void render(SportsData data, FieldFormatter out) {
+			double distance = quantity.get(data) * factor;
+			out.appendFixed(distance, distance > 100 ? 0 : 1);
+		}
+
+		void encode(SportsData data, BinaryFieldEncoder out) {
+			out.putInt32(quantity.get(data) * factor, 100);
+		}
+	}
+
+	// thousands with two decimals above 1000 units, int32
+	private static class ElevationGainField extends Field {
+		private double factor;
+
+		ElevationGainField(double factor) {
+			this.factor = factor;
+		}
+
+		void render(SportsData data, FieldFormatter out) {
+			double elevationgain = data.getElevationGain() * factor;
+			if ( elevationgain > 1000 ) {
+				out.appendFixed(elevationgain / 1000, 2);
+			} else {
+				out.appendFixed(elevationgain, 0);
+			}
+		}
+
+		void encode(SportsData data, BinaryFieldEncoder out) {
+			out.putInt32(data.getElevationGain() * factor, 1);
+		}
+	}
+
+	// duration in ms, int32 in s
+	private static class DurationField extends Field {
+		private Quantity quantity;
+
+		DurationField(Quantity quantity) {
+			this.quantity = quantity;
+		}
+
+		void render(SportsData data, FieldFormatter out) {
+			out.appendDuration((long)quantity.get(data) / 1000);
+		}
+
+		void encode(SportsData data, BinaryFieldEncoder out) {
+			out.putInt32((long)quantity.get(data) / 1000);
+		}
+	}
+
+	// time of day, int16 minutes since midnight. Optional times are shown
+	// as --:-- and encoded as -1 when not set.
+	private static class ClockField extends Field {
+		private Quantity quantity;
+		private boolean optional;
+		private TimeZone timeZone;
+
+		ClockField(Quantity quantity, boolean optional, TimeZone timeZone) {
+			this.quantity = quantity;
+			this.optional = optional;
+			this.timeZone = timeZone;
+		}
+
+		void render(SportsData data, FieldFormatter out) {
+			long time = (long)quantity.get(data);
+			if (( optional )&&( time <= 0 )) {
+				out.append("--:--");
+			} else {
+				out.appendClockTime(time);
+			}
+		}
+
+		void encode(SportsData data, BinaryFieldEncoder out) {
+			long time = (long)quantity.get(data);
+			if (( optional )&&( time <= 0 )) {
+				out.putInt16(-1);
+			} else {
+				long local = time + timeZone.getOffset(time);
+				out.putInt16(( ( local / 60000 ) % 1440 + 1440 ) % 1440);
+			}
+		}
+	}
+
+	// time per distance unit, int32 s or -1 when standing still
+	private static class PaceField extends Field {
+		private double factor;
+
+		PaceField(double factor) {
+			this.factor = factor;
+		}
+
+		void render(SportsData data, FieldFormatter out) {
+			if ( data.getPace() > 0 ) {
+				out.appendDuration((long)(data.getPace() / factor));
+			} else {
+				out.append("--:--");
+			}
+		}
+
+		void encode(SportsData data, BinaryFieldEncoder out) {
+			out.putInt32(data.getPace() > 0 ? (long)(data.getPace() / factor) : -1);
+		}
+	}
+
+	private static class NothingField extends Field {
+		void render(SportsData data, FieldFormatter out) {
+			out.append('-');
+		}
+
+		void encode(SportsData data, BinaryFieldEncoder out) {
+			out.putInt16(0);
+		}
+	}
+
+	private static final Quantity SPEED = new Quantity() {
+		public double get(SportsData data) { return data.getSpeed(); }
+	};
+	private static final Quantity AVGSPEED = new Quantity() {
+		public double get(SportsData data) { return data.getAvgspeed(); }
+	};
+	private static final Quantity AVGMOVINGSPEED = new Quantity() {
+		public double get(SportsData data) { return data.getAvgmovingspeed(); }
+	};
+	private static final Quantity MAXSPEED = new Quantity() {
+		public double get(SportsData data) { return data.getMaxspeed(); }
+	};
+	private static final Quantity DISTANCE = new Quantity() {
+		public double get(SportsData data) { return data.getDistance(); }
+	};
+	private static final Quantity DISTANCETOSTART = new Quantity() {
+		public double get(SportsData data) { return data.getDistanceToStart(); }
+	};
+	private static final Quantity BEARING = new Quantity() {
+		public double get(SportsData data) { return data.getBearing(); }
+	};
+	private static final Quantity HEADING = new Quantity() {
+		public double get(SportsData data) { return data.getHeading(); }
+	};
+	private static final Quantity MINELEVATION = new Quantity() {
+		public double get(SportsData data) { return data.getMinaltitude(); }
+	};
+	private static final Quantity MAXELEVATION = new Quantity() {
+		public double get(SportsData data) { return data.getMaxaltitude(); }
+	};
+	private static final Quantity MINGRADE = new Quantity() {
+		public double get(SportsData data) { return data.getMingrade(); }
+	};
+	private static final Quantity MAXGRADE = new Quantity() {
+		public double get(SportsData data) { return data.getMaxgrade(); }
+	};
+	private static final Quantity GRADE = new Quantity() {
+		public double get(SportsData data) { return data.getGrade(); }
+	};
+	private static final Quantity VAM = new Quantity() {
+		public double get(SportsData data) { return data.getVerticalspeed(); }
+	};
+	private static final Quantity TOTALTIME = new Quantity() {
+		public double get(SportsData data) { return data.getTotaltime(); }
+	};
+	private static final Quantity TOTALTIMEFROMSTART = new Quantity() {
+		public double get(SportsData data) { return data.getTotalTimeFromStart(); }
+	};
+	private static final Quantity TOTALMOVINGTIME = new Quantity() {
+		public double get(SportsData data) { return data.getTotalmovingtime(); }
+	};
+	private static final Quantity STARTTIME = new Quantity() {
+		public double get(SportsData data) { return data.getStartTime(); }
+	};
+	private static final Quantity STOPTIME = new Quantity() {
+		public double get(SportsData data) { return data.getStopTime(); }
+	};
+	private static final Quantity ETASTART = new Quantity() {
+		public double get(SportsData data) { return data.getEtaStart(); }
+	};
+	private static final Quantity WEEKDISTANCE = new Quantity() {
+		public double get(SportsData data) { return data.getWeekDistance(); }
+	};
+	private static final Quantity MONTHDISTANCE = new Quantity() {
+		public double get(SportsData data) { return data.getMonthDistance(); }
+	};
+	private static final Quantity LONGESTTRACK = new Quantity() {
+		public double get(SportsData data) { return data.getLongestDistance(); }
+	};
+	private static final Quantity FASTESTAVGSPEED = new Quantity() {
+		public double get(SportsData data) { return data.getFastestAvgSpeed(); }
+	};
+	private static final Quantity BIGGESTGAIN = new Quantity() {
+		public double get(SportsData data) { return data.getBiggestElevationGain(); }
+	};
+	private static final Quantity LAPTIME = new Quantity() {
+		public double get(SportsData data) { return data.getLapTime(); }
+	};
+	private static final Quantity LAPDISTANCE = new Quantity() {
+		public double get(SportsData data) { return data.getLapDistance(); }
+	};
+	private static final Quantity LAPAVGSPEED = new Quantity() {
+		public double get(SportsData data) { return data.getLapAvgspeed(); }
+	};
+
+	private Field[] fields;
+	private boolean metric;
+	private double speedFactor;
+	private double distanceFactor;
+	private double elevationFactor;
+	private double sportsDistanceFactor;
+	private String speedUnit;
+	private String distanceUnit;
+	private String elevationUnit;
+	// start time of the track summaries. Summaries are also rendered by the
+	// summary prefetch and the indexer threads, so its use is synchronized.
+	private SimpleDateFormat startTimeFormat;
+
+	public DisplayPlan(ParameterType[] types, boolean metric) {
+		this.metric = metric;
+		if ( metric ) {
+			speedFactor = SportsData.MPS_TO_KMH;
+			distanceFactor = SportsData.M_TO_KM;
+			elevationFactor = 1;
+			sportsDistanceFactor = 1;
+			speedUnit = "kmh";
+			distanceUnit = "km";
+			elevationUnit = "m";
+		} else {
+			speedFactor = SportsData.MPS_TO_MPH;
+			distanceFactor = SportsData.M_TO_MILE;
+			elevationFactor = SportsData.M_TO_FEET;
+			sportsDistanceFactor = SportsData.KM_TO_MILES;
+			speedUnit = "mph";
+			distanceUnit = "miles";
+			elevationUnit = "ft";
+		}
+
+		startTimeFormat = new SimpleDateFormat("MMM/dd/yyyy HH:mm");
+		TimeZone timeZone = TimeZone.getDefault();
+		fields = new Field[types.length];
+		for ( int i = 0; i < types.length; i++ ) {
+			fields[i] = compile(types[i], timeZone);
+		}
+	}
+
+	private Field compile(ParameterType type, TimeZone timeZone) {
+		switch ( type ) {
+		case SPEED:
+			return new FixedField(SPEED, speedFactor, 1, 10);
+		case AVGSPEED:
+			return new FixedField(AVGSPEED, speedFactor, 1, 10);
+		case AVGMOVINGSPEED:
+			return new FixedField(AVGMOVINGSPEED, speedFactor, 1, 10);
+		case MAXSPEED:
+			return new FixedField(MAXSPEED, speedFactor, 1, 10);
+		case DISTANCE:
+			return new DistanceField(DISTANCE, distanceFactor);
+		case DISTANCETOSTART:
+			return new DistanceField(DISTANCETOSTART, distanceFactor);
+		case BEARING:
+			return new FixedField(BEARING, 1, 0, 1);
+		case HEADING:
+			return new FixedField(HEADING, 1, 0, 1);
+		case MINELEVATION:
+			return new FixedField(MINELEVATION, elevationFactor, 0, 1);
+		case MAXELEVATION:
+			return new FixedField(MAXELEVATION, elevationFactor, 0, 1);
+		case MINGRADE:
+			return new FixedField(MINGRADE, 1, 1, 10);
+		case MAXGRADE:
+			return new FixedField(MAXGRADE, 1, 1, 10);
+		case GRADE:
+			return new FixedField(GRADE, 1, 1, 10);
+		case VAM:
+			return new FixedField(VAM, elevationFactor, 0, 1);
+		case ELEVATIONGAIN:
+			return new ElevationGainField(elevationFactor);
+		case TOTALTIME:
+			return new DurationField(TOTALTIME);
+		case TOTALTIMEFROMSTART:
+			return new DurationField(TOTALTIMEFROMSTART);
+		case TOTALMOVINGTIME:
+			return new DurationField(TOTALMOVINGTIME);
+		case STARTTIME:
+			return new ClockField(STARTTIME, false, timeZone);
+		case STOPTIME:
+			return new ClockField(STOPTIME, false, timeZone);
+		case ETASTART:
+			return new ClockField(ETASTART, true, timeZone);
+		case PACE:
+			return new PaceField(distanceFactor);
+		case WEEKDISTANCE:
+			return new DistanceField(WEEKDISTANCE, distanceFactor);
+		case MONTHDISTANCE:
+			return new DistanceField(MONTHDISTANCE, distanceFactor);
+		case LONGESTTRACK:
+			return new DistanceField(LONGESTTRACK, distanceFactor);
+		case FASTESTAVGSPEED:
+			return new FixedField(FASTESTAVGSPEED, speedFactor, 1, 10);
+		case BIGGESTGAIN:
+			return new FixedField(BIGGESTGAIN, elevationFactor, 0, 1);
+		case LAPTIME:
+			return new DurationField(LAPTIME);
+		case LAPDISTANCE:
+			return new DistanceField(LAPDISTANCE, distanceFactor);
+		case LAPAVGSPEED:
+			return new FixedField(LAPAVGSPEED, speedFactor, 1, 10);
+		case NOTHING:
+		default:
+			return new NothingField();
+		}
+	}
+
+	public int size() {
+		return fields.length;
+	}
+
+	// semicolon separated values for the string wire format
+	public void render(SportsData data, FieldFormatter out) {
+		out.reset();
+		for ( int i = 0; i < fields.length; i++ ) {
+			if ( i > 0 ) {
+				out.append(';');
+			}
+			fields[i].render(data, out);
+		}
+	}
+
+	public void encode(SportsData data, BinaryFieldEncoder out) {
+		out.reset();
+		for ( int i = 0; i < fields.length; i++ ) {
+			fields[i].encode(data, out);
+		}
+	}
+
+	public boolean isMetric() {
+		return metric;
+	}
+
+	public double getSpeedFactor() {
+		return speedFactor;
+	}
+
+	// distance in km or miles for the Pebble sports app
+	public double getSportsDistance(SportsData data) {
+		return data.getDistance() * SportsData.M_TO_KM * sportsDistanceFactor;
+	}
+
+	// times in ms, distance and elevation gain in m, speed in m/s as in the
+	// TripStatistics of MyTracks
+	public String createTrackSummary(long startTime, double totalDistance, long totalTime, long movingTime, double maxSpeed, double elevationGain) {
+		String start;
+		synchronized ( startTimeFormat ) {
+			start = startTimeFormat.format(new Date(startTime));
+		}
+		double averageSpeed = ( totalTime == 0 ) ? 0 : totalDistance / ( totalTime / 1000.0 );
+		double averageMovingSpeed = ( movingTime == 0 ) ? 0 : totalDistance / ( movingTime / 1000.0 );
+		return start + ";" +
+				String.format(Locale.US,"%.1f %s;",totalDistance * distanceFactor,distanceUnit) +
+				String.format(Locale.US,"%02d:%02d:%02d;",totalTime / 3600000,(totalTime % 3600000)/60000,(totalTime % 60000)/1000) +
+				String.format(Locale.US,"%.1f %s;",averageSpeed * speedFactor,speedUnit) +
+				String.format(Locale.US,"%.1f %s;",averageMovingSpeed * speedFactor,speedUnit) +
+				String.format(Locale.US,"%.1f %s;",maxSpeed * speedFactor,speedUnit) +
+				String.format(Locale.US,"%.1f %s",elevationGain * elevationFactor,elevationUnit);
+	}
+
+	// week and month distance and the records, same layout as a track summary
+	public String createRecordsSummary(SportsData data) {
+		return String.format(Locale.US,"%.1f %s;",data.getWeekDistance() * distanceFactor,distanceUnit) +
+				String.format(Locale.US,"%.1f %s;",data.getMonthDistance() * distanceFactor,distanceUnit) +
+				String.format(Locale.US,"%.1f %s;",data.getLongestDistance() * distanceFactor,distanceUnit) +
+				String.format(Locale.US,"%.1f %s;",data.getFastestAvgSpeed() * speedFactor,speedUnit) +
+				String.format(Locale.US,"%.0f %s",data.getBiggestElevationGain() * elevationFactor,elevationUnit);
+	}
+
+	// number, time, distance and average speed of a completed lap
+	public String createLapSummary(int lap, long lapTime, double lapDistance, double lapSpeed) {
+		return lap + ";" +
+				String.format(Locale.US,"%02d:%02d:%02d;",lapTime / 3600000,(lapTime % 3600000)/60000,(lapTime % 60000)/1000) +
+				String.format(Locale.US,"%.2f %s;",lapDistance * distanceFactor,distanceUnit) +
+				String.format(Locale.US,"%.1f %s",lapSpeed * speedFactor,speedUnit);
+	}
+}
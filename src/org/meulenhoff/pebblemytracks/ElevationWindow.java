@@ -0,0 +1,98 @@
+package org.meulenhoff.pebblemytracks;
+
+// fixed-capacity ring buffer of (distance, altitude, time) samples covering
+// the last windowDistance metres of the track. The samples are kept in
+// parallel primitive arrays, adding a sample evicts the ones that are no
+// longer needed in amortized O(1), and the queries are O(1).
+//
+// Samples closer than windowDistance / (capacity - 2) to the previous one
+// are replaced by the next sample instead of kept, so a full buffer always
+// spans the window, however dense the track points are.
+public class ElevationWindow {
+	private double windowDistance;
+	private double minSpacing;
+	private double[] distances;
+	private double[] altitudes;
+	private long[] times;
+	private int tail; // oldest sample
+	private int size;
+
+	public ElevationWindow(int capacity, double windowDistance) {
+		this.windowDistance = windowDistance;
+		minSpacing = windowDistance / Math.max(1, capacity - 2);
+		distances = new double[capacity];
+		altitudes = new double[capacity];
+		times = new long[capacity];
+		clear();
+	}
+
+	public void clear() {
+		tail = 0;
+		size = 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	// distance along the track in m, altitude in m, time in ms
+	public void add(double distance, double altitude, long time) {
+		int capacity = distances.length;
+		if (( size >= 2 )&&( distances[head()] - distances[( tail + size - 2 ) % capacity] < minSpacing )) {
+			// the newest sample is too close to the one before it
+			size--;
+		} else if ( size == capacity ) {
+			tail = ( tail + 1 ) % capacity;
+			size--;
+		}
+		int head = ( tail + size ) % capacity;
+		distances[head] = distance;
+		altitudes[head] = altitude;
+		times[head] = time;
+		size++;
+
+		// drop the oldest sample as long as the rest still covers the window
+		while (( size > 2 )&&( distance - distances[( tail + 1 ) % capacity] >= windowDistance )) {
+			tail = ( tail + 1 ) % capacity;
+			size--;
+		}
+	}
+
+	// true when the samples span at least the window distance
+	public boolean isComplete() {
+		return ( size >= 2 )&&( getDistance() >= windowDistance );
+	}
+
+	// horizontal distance covered by the samples in m
+	public double getDistance() {
+		if ( size < 2 ) {
+			return 0;
+		}
+		return distances[head()] - distances[tail];
+	}
+
+	// grade over the window in %
+	public double getGrade() {
+		double distance = getDistance();
+		if ( distance <= 0 ) {
+			return 0;
+		}
+		return ( altitudes[head()] - altitudes[tail] ) * 100 / distance;
+	}
+
+	// vertical speed over the window in m/h
+	public double getVerticalSpeed() {
+		if ( size < 2 ) {
+			return 0;
+		}
+		long time = times[head()] - times[tail];
+		if ( time <= 0 ) {
+			return 0;
+		}
+		return ( altitudes[head()] - altitudes[tail] ) * 3600000 / time;
+	}
+
+	private int head() {
+		return ( tail + size - 1 ) % distances.length;
+	}
+}
@@ -0,0 +1,203 @@
+package org.meulenhoff.pebblemytracks;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+// a single thread that runs posted tasks one at a time, in order. Commands,
+// events and the periodic updates of the service all run here, so the service
+// state is only touched by one thread. The queue of immediate tasks is
+// bounded, delayed tasks run as soon as they are due.
+//
+// Tests attach the loop to their own thread instead of starting it, set the
+// time with a Clock and run the due tasks with runDue().
+public class EventLoop {
+	private final String TAG = "PebbleMyTracks";
+	public static final int DEFAULT_CAPACITY = 32;
+	// quit() waits this long for the running task
+	public static final long QUIT_TIMEOUT = 2000;
+
+	// time in ms for the delayed tasks
+	public interface Clock {
+		public long now();
+	}
+
+	// the time base of the command timestamps, see CommandChannel
+	private static final Clock ELAPSED_REALTIME = new Clock() {
+		public long now() {
+			return SystemClock.elapsedRealtime();
+		}
+	};
+
+	private static class DelayedTask {
+		Runnable task;
+		long time;
+
+		DelayedTask(Runnable task, long time) {
+			this.task = task;
+			this.time = time;
+		}
+	}
+
+	private String name;
+	private int capacity;
+	private Clock clock;
+	private LinkedList<Runnable> queue = new LinkedList<Runnable>();
+	private List<DelayedTask> delayed = new ArrayList<DelayedTask>();
+	private Thread thread;
+	private boolean running;
+
+	public EventLoop(String name) {
+		this(name, DEFAULT_CAPACITY);
+	}
+
+	public EventLoop(String name, int capacity) {
+		this(name, capacity, ELAPSED_REALTIME);
+	}
+
+	public EventLoop(String name, int capacity, Clock clock) {
+		this.name = name;
+		this.capacity = capacity;
+		this.clock = clock;
+		running = false;
+	}
+
+	public synchronized void start() {
+		if ( running ) {
+			return;
+		}
+		running = true;
+		thread = new Thread(new Runnable() {
+			public void run() {
+				loop();
+			}
+		}, name);
+		thread.start();
+	}
+
+	// accept tasks and run them on the calling thread with runDue()
+	public synchronized void attach() {
+		running = true;
+		thread = Thread.currentThread();
+	}
+
+	// stop the loop, pending tasks are discarded. Waits up to QUIT_TIMEOUT
+	// for the running task so the caller can release what the tasks use.
+	public void quit() {
+		Thread loopThread;
+		synchronized ( this ) {
+			running = false;
+			queue.clear();
+			delayed.clear();
+			notifyAll();
+			loopThread = thread;
+		}
+		if (( loopThread != null )&&( loopThread != Thread.currentThread() )&&( loopThread.isAlive() )) {
+			try {
+				loopThread.join(QUIT_TIMEOUT);
+			} catch ( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+			}
+			if ( loopThread.isAlive() ) {
+				Log.i(TAG,"Event loop task still running after " + QUIT_TIMEOUT + " ms");
+			}
+		}
+	}
+
+	// returns false when the loop is stopped or the queue is full
+	public synchronized boolean post(Runnable task) {
+		if (( !running )||( queue.size() >= capacity )) {
+			return false;
+		}
+		queue.add(task);
+		notifyAll();
+		return true;
+	}
+
+	public synchronized boolean postDelayed(Runnable task, long delay) {
+		if ( !running ) {
+			return false;
+		}
+		long time = now() + Math.max(0, delay);
+		int i = 0;
+		while (( i < delayed.size() )&&( delayed.get(i).time <= time )) {
+			i++;
+		}
+		delayed.add(i, new DelayedTask(task, time));
+		notifyAll();
+		return true;
+	}
+
+	// remove all pending runs of the task
+	public synchronized void removeCallbacks(Runnable task) {
+		queue.remove(task);
+		Iterator<DelayedTask> iterator = delayed.iterator();
+		while ( iterator.hasNext() ) {
+			if ( iterator.next().task == task ) {
+				iterator.remove();
+			}
+		}
+	}
+
+	public boolean isLoopThread() {
+		return Thread.currentThread() == thread;
+	}
+
+	// time of the loop clock in ms, SystemClock.elapsedRealtime() unless
+	// replaced. Timers and command times of the service use this clock.
+	public long now() {
+		return clock.now();
+	}
+
+	// run the immediate tasks and the delayed tasks that are due, including
+	// the ones they post. Returns the number of tasks run.
+	public int runDue() {
+		int count = 0;
+		Runnable task;
+		while (( task = next(false) ) != null ) {
+			run(task);
+			count++;
+		}
+		return count;
+	}
+
+	private void loop() {
+		Runnable task;
+		while (( task = next(true) ) != null ) {
+			run(task);
+		}
+	}
+
+	// the next task to run, null when the loop stopped or, without
+	// blocking, when no task is due
+	private synchronized Runnable next(boolean block) {
+		while ( running ) {
+			long now = now();
+			if ( !queue.isEmpty() ) {
+				return queue.removeFirst();
+			} else if (( !delayed.isEmpty() )&&( delayed.get(0).time <= now )) {
+				return delayed.remove(0).task;
+			} else if ( !block ) {
+				return null;
+			}
+			try {
+				wait(delayed.isEmpty() ? 0 : delayed.get(0).time - now);
+			} catch ( InterruptedException e ) {
+				return null;
+			}
+		}
+		return null;
+	}
+
+	private void run(Runnable task) {
+		try {
+			task.run();
+		} catch ( RuntimeException e ) {
+			Log.i(TAG,"Caught exception in event loop: " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package org.meulenhoff.pebblemytracks;
+
+import java.util.TimeZone;
+
+// formats the field values for the Pebble into a reusable char buffer, so the
+// updater does not create intermediate strings and Formatter instances on
+// every tick. Decimals always use '.', independent of the phone locale, so
+// the watch shows the same text whatever the phone language is. Before,
+// String.format used the default locale.
+public class FieldFormatter {
+	private static final long[] POWERS_OF_TEN = { 1L, 10L, 100L, 1000L, 10000L };
+
+	private char[] buffer;
+	private int length;
+	private TimeZone timeZone;
+
+	public FieldFormatter() {
+		buffer = new char[64];
+		length = 0;
+		timeZone = TimeZone.getDefault();
+	}
+
+	public void reset() {
+		length = 0;
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public char[] getBuffer() {
+		return buffer;
+	}
+
+	public FieldFormatter append(char c) {
+		ensureCapacity(1);
+		buffer[length++] = c;
+		return this;
+	}
+
+	public FieldFormatter append(String s) {
+		int n = s.length();
+		ensureCapacity(n);
+		s.getChars(0, n, buffer, length);
+		length += n;
+		return this;
+	}
+
+	// like String.format(Locale.US,"%.<decimals>f",value): rounds half up
+	// on the decimal value and keeps the sign of small negative values
+	// ("-0.0"). String.format rounds the shortest decimal representation of
+	// the double; here a value less than 1e-15 relative below a half-way
+	// point rounds up as well, so 0.04999999999999999 gives "0.1" where
+	// String.format gives "0.0".
+	public FieldFormatter appendFixed(double value, int decimals) {
+		if ( Double.isNaN(value) ) {
+			return append("NaN");
+		}
+		if ( Double.isInfinite(value) ) {
+			return append(value > 0 ? "Infinity" : "-Infinity");
+		}
+		if ( Double.doubleToRawLongBits(value) < 0 ) {
+			append('-');
+			value = -value;
+		}
+
+		// the relative correction rounds decimal values that are stored
+		// just below a half-way point up, e.g. 2.675 to 2.68
+		double scaled = value * POWERS_OF_TEN[decimals];
+		long rounded = (long)Math.floor(scaled + 0.5 + scaled * 1e-15);
+
+		appendLong(rounded / POWERS_OF_TEN[decimals], 1);
+		if ( decimals > 0 ) {
+			append('.');
+			appendLong(rounded % POWERS_OF_TEN[decimals], decimals);
+		}
+		return this;
+	}
+
+	// same as String.format("%02d",value)
+	public FieldFormatter appendTwoDigits(long value) {
+		return appendLong(value, 2);
+	}
+
+	// hh:mm for an hour or more, mm:ss otherwise
+	public FieldFormatter appendDuration(long seconds) {
+		if ( seconds > 3599 ) {
+			appendTwoDigits(seconds / 3600);
+			append(':');
+			appendTwoDigits((seconds % 3600) / 60);
+		} else {
+			appendTwoDigits(seconds / 60);
+			append(':');
+			appendTwoDigits(seconds % 60);
+		}
+		return this;
+	}
+
+	// local time of day as HH:mm
+	public FieldFormatter appendClockTime(long millis) {
+		long local = millis + timeZone.getOffset(millis);
+		long minutes = ( ( local / 60000 ) % 1440 + 1440 ) % 1440;
+		appendTwoDigits(minutes / 60);
+		append(':');
+		appendTwoDigits(minutes % 60);
+		return this;
+	}
+
+	// decimal representation, left padded with zeroes up to width digits
+	private FieldFormatter appendLong(long value, int width) {
+		if ( value < 0 ) {
+			append('-');
+			if ( value == Long.MIN_VALUE ) {
+				return append("9223372036854775808");
+			}
+			value = -value;
+			width--;
+		}
+
+		int digits = 1;
+		for ( long v = value / 10; v > 0; v /= 10 ) {
+			digits++;
+		}
+		int n = Math.max(digits, width);
+		ensureCapacity(n);
+		for ( int i = length + n - 1; i >= length; i-- ) {
+			buffer[i] = (char)('0' + (value % 10));
+			value /= 10;
+		}
+		length += n;
+		return this;
+	}
+
+	// compare the buffer with a previously rendered string without creating
+	// a new one
+	public boolean contentEquals(String s) {
+		if (( s == null )||( s.length() != length )) {
+			return false;
+		}
+		for ( int i = 0; i < length; i++ ) {
+			if ( s.charAt(i) != buffer[i] ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return new String(buffer, 0, length);
+	}
+
+	private void ensureCapacity(int n) {
+		if ( length + n > buffer.length ) {
+			char[] larger = new char[Math.max(buffer.length * 2, length + n)];
+			System.arraycopy(buffer, 0, larger, 0, length);
+			buffer = larger;
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package org.meulenhoff.pebblemytracks;
+
+// laps of the current track, updated in O(1) from every new track point.
+// A lap ends automatically every lap length or manually with lap(). Only the
+// running lap and the last completed lap are kept.
+public class LapEngine {
+	// lap length in m, 0 when auto lap is off
+	private double lapLength;
+
+	private boolean started;
+	private int lapNumber;
+	private double lapStartDistance;
+	private long lapStartTime;
+	private double lastDistance;
+	private long lastTime;
+
+	private int completedLaps;
+	private long lastLapTime;
+	private double lastLapDistance;
+
+	public LapEngine() {
+		reset();
+	}
+
+	public void reset() {
+		started = false;
+		lapNumber = 1;
+		lapStartDistance = 0;
+		lapStartTime = 0;
+		lastDistance = 0;
+		lastTime = 0;
+		completedLaps = 0;
+		lastLapTime = 0;
+		lastLapDistance = 0;
+	}
+
+	// distance in m, 0 turns auto lap off. Applies from the running lap on.
+	public void setLapLength(double lapLength) {
+		this.lapLength = Math.max(0, lapLength);
+	}
+
+	// distance along the track in m, time in ms.
+	// Returns true when one or more laps were completed.
+	public boolean add(double distance, long time) {
+		if ( !started ) {
+			started = true;
+			lapStartTime = time;
+			lastDistance = distance;
+			lastTime = time;
+			return false;
+		}
+		boolean completed = false;
+		while (( lapLength > 0 )&&( distance >= lapStartDistance + lapLength )&&( distance > lastDistance )) {
+			// the boundary lies between the previous and this point
+			double boundary = lapStartDistance + lapLength;
+			long boundaryTime = lastTime + (long)(( time - lastTime ) * ( Math.max(boundary, lastDistance) - lastDistance ) / ( distance - lastDistance ));
+			complete(boundary, boundaryTime);
+			completed = true;
+		}
+		lastDistance = distance;
+		lastTime = time;
+		return completed;
+	}
+
+	// manual lap at the distance and GPS time of the last point, so it does
+	// not depend on the phone clock. Returns false when there is no point
+	// yet or the running lap has no point after its start.
+	public boolean lap() {
+		if (( !started )||( lastTime <= lapStartTime )) {
+			return false;
+		}
+		complete(lastDistance, lastTime);
+		return true;
+	}
+
+	private void complete(double distance, long time) {
+		lastLapDistance = distance - lapStartDistance;
+		lastLapTime = time - lapStartTime;
+		completedLaps++;
+		lapNumber++;
+		lapStartDistance = distance;
+		lapStartTime = time;
+	}
+
+	// number of the running lap, starting at 1
+	public int getLapNumber() {
+		return lapNumber;
+	}
+
+	// laps completed since the track was loaded
+	public int getCompletedLaps() {
+		return completedLaps;
+	}
+
+	public double getLapDistance() {
+		return started ? lastDistance - lapStartDistance : 0;
+	}
+
+	// time of the running lap at time, in ms
+	public long getLapTime(long time) {
+		return started ? Math.max(0, time - lapStartTime) : 0;
+	}
+
+	// m/s over the running lap up to the last point
+	public double getLapAverageSpeed() {
+		long duration = lastTime - lapStartTime;
+		return duration > 0 ? getLapDistance() * 1000 / duration : 0;
+	}
+
+	public long getLastLapTime() {
+		return lastLapTime;
+	}
+
+	public double getLastLapDistance() {
+		return lastLapDistance;
+	}
+
+	public double getLastLapAverageSpeed() {
+		return lastLapTime > 0 ? lastLapDistance * 1000 / lastLapTime : 0;
+	}
+}
@@ -2,41 +2,61 @@ package org.meulenhoff.pebblemytracks;
 
 public class MyAppSettings {
 	public enum ParameterType {
-	    SPEED("Speed","SPEED"),
+	    SPEED("Speed","SPEED",1),
 
-	    TOTALTIME("Total Time","TIME"),
-	    TOTALTIMEFROMSTART("Total Time from start","TIME"),
-	    TOTALMOVINGTIME("Total Moving Time","TIME"),
-	    ETASTART("Estimated Time of Arrival (Start)","ETA"),
+	    TOTALTIME("Total Time","TIME",2),
+	    TOTALTIMEFROMSTART("Total Time from start","TIME",3),
+	    TOTALMOVINGTIME("Total Moving Time","TIME",4),
+	    ETASTART("Estimated Time of Arrival (Start)","ETA",5),
 	    
-	    DISTANCE("Distance","Distance"),
-	    DISTANCETOSTART("Distance to start","TO START"),
+	    DISTANCE("Distance","Distance",6),
+	    DISTANCETOSTART("Distance to start","TO START",7),
 	    
-	    AVGSPEED("Average Speed","AVG"),
-	    AVGMOVINGSPEED("Average Moving Speed","AVG"),	    
+	    AVGSPEED("Average Speed","AVG",8),
+	    AVGMOVINGSPEED("Average Moving Speed","AVG",9),	    
 	    
-	    STARTTIME("Start Time","START"),
-	    STOPTIME("Stop Time","STOP"),
+	    STARTTIME("Start Time","START",10),
+	    STOPTIME("Stop Time","STOP",11),
 	    
-	    ELEVATIONGAIN("Total Elevation Gain","TTL ELEV"),
-	    MINELEVATION("Minimum Elevation","MIN ELEV"),
-	    MAXELEVATION("Minimum Elevation","MAX ELEV"),
-	    MAXGRADE("Maximum Grade","MAX GRADE"),
-	    MINGRADE("Minimum Grade","MIN GRADE"),
+	    ELEVATIONGAIN("Total Elevation Gain","TTL ELEV",12),
+	    MINELEVATION("Minimum Elevation","MIN ELEV",13),
+	    MAXELEVATION("Maximum Elevation","MAX ELEV",14),
+	    MAXGRADE("Maximum Grade","MAX GRADE",15),
+	    MINGRADE("Minimum Grade","MIN GRADE",16),
+	    GRADE("Grade","GRADE",17),
+	    VAM("Vertical Speed","VAM",18),
 	    
-	    BEARING("Relative Bearing","BEARING"),
-	    HEADING("Heading","HEADING"),
-	    MAXSPEED("Maximum speed","MAX"),
+	    BEARING("Relative Bearing","BEARING",19),
+	    HEADING("Heading","HEADING",20),
+	    MAXSPEED("Maximum speed","MAX",21),
+	    PACE("Pace","PACE",22),
+
+	    WEEKDISTANCE("Distance this week","WEEK",23),
+	    MONTHDISTANCE("Distance this month","MONTH",24),
+	    LONGESTTRACK("Longest track","LONGEST",25),
+	    FASTESTAVGSPEED("Fastest average speed","FASTEST",26),
+	    BIGGESTGAIN("Biggest elevation gain","MAX GAIN",27),
+
+	    LAPTIME("Lap Time","LAP TIME",28),
+	    LAPDISTANCE("Lap Distance","LAP DIST",29),
+	    LAPAVGSPEED("Lap Average Speed","LAP AVG",30),
 	    
 	    
 	    
-	    NOTHING("Nothing","NA");
+	    NOTHING("Nothing","NA",0);
 	    
 	    private String preferenceString;
 	    private String pebbleString;
-	    private ParameterType(String preferenceString,String pebbleString) {
+	    // field type id in the binary wire format, never reuse or renumber
+	    private byte wireId;
+	    private ParameterType(String preferenceString,String pebbleString,int wireId) {
 	    	this.preferenceString = preferenceString;
 	    	this.pebbleString = pebbleString;
+	    	this.wireId = (byte)wireId;
+	    }
+
+	    public byte getWireId() {
+	    	return this.wireId;
 	    }
 
 	    public String getPebbleString() {
@@ -49,19 +69,59 @@ public class MyAppSettings {
 	   
 	}
 	
+	// the parameters of a page are stored under "parameter" + page * MAX_FIELDS
+	// + field, so the first page keeps the keys of the single page before and
+	// changing the number of values does not move parameters between pages
+	public static final int MAX_FIELDS = 8;
+	public static final int MAX_PAGES = 4;
+
 	private ParameterType[] parameter;
-	public static final int numFields = 5;
+	private int numberOfValues;
+	private int numberOfPages;
 	
 	public MyAppSettings() {
-		parameter = new ParameterType[numFields];
+		parameter = new ParameterType[MAX_FIELDS * MAX_PAGES];
+		for(int i=0;(i<parameter.length);i++) {
+			parameter[i] = ParameterType.NOTHING;
+		}
+		numberOfValues = 5;
+		numberOfPages = 1;
+	}
+
+	public static String getPreferenceKey(int page,int field) {
+		return "parameter" + (page * MAX_FIELDS + field);
 	}
 	
-	public void setParameter(int i,ParameterType t) {
-		parameter[i] = t;
+	public void setNumberOfValues(int n) {
+		numberOfValues = Math.max(1, Math.min(MAX_FIELDS, n));
+	}
+
+	public int getNumberOfValues() {
+		return numberOfValues;
+	}
+
+	public void setNumberOfPages(int n) {
+		numberOfPages = Math.max(1, Math.min(MAX_PAGES, n));
+	}
+
+	public int getNumberOfPages() {
+		return numberOfPages;
+	}
+
+	public void setParameter(int page,int field,ParameterType t) {
+		parameter[page * MAX_FIELDS + field] = t;
 	}
 	
-	public ParameterType getParameter(int i) {
-		return parameter[i];
+	public ParameterType getParameter(int page,int field) {
+		return parameter[page * MAX_FIELDS + field];
+	}
+
+	// the parameters shown on a page
+	public ParameterType[] getPage(int page) {
+		ParameterType[] types = new ParameterType[numberOfValues];
+		for(int i=0;(i<numberOfValues);i++) {
+			types[i] = getParameter(page, i);
+		}
+		return types;
 	}
- 	
 }
@@ -6,6 +6,7 @@ import org.meulenhoff.pebblemytracks.MyAppSettings.ParameterType;
 
 
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.net.Uri;
 import android.os.Bundle;
 import android.preference.ListPreference;
@@ -17,13 +18,14 @@ import android.util.Log;
 
 public class MyPreferencesActivity extends PreferenceActivity {
 	private final String TAG = "PebbleMyTracks";
+	private PreferenceScreen screen;
+	private ArrayList<Preference> parameterPreferences = new ArrayList<Preference>();
 	
   @Override
   public void onCreate(Bundle savedInstanceState) {        
       super.onCreate(savedInstanceState);        
       addPreferencesFromResource(R.xml.preferences);
       
-      PreferenceScreen screen = (PreferenceScreen)getPreferenceManager().findPreference("alternativePreferenceScreen");
 
 //      Preference button = (Preference)getPreferenceManager().findPreference("button");
 //      button.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
@@ -50,34 +52,66 @@ public class MyPreferencesActivity extends PreferenceActivity {
                 });
 
       
+      screen = (PreferenceScreen)getPreferenceManager().findPreference("alternativePreferenceScreen");
+      Preference.OnPreferenceChangeListener layoutListener = new Preference.OnPreferenceChangeListener() {
+    	  @Override
+    	  public boolean onPreferenceChange(Preference preference, Object newValue) {
+    		  SharedPreferences preferences = getPreferenceManager().getSharedPreferences();
+    		  int values = Integer.parseInt(preferences.getString("numberOfValues", "5"));
+    		  int pages = Integer.parseInt(preferences.getString("numberOfPages", "1"));
+    		  if ( "numberOfValues".equals(preference.getKey()) ) {
+    			  values = Integer.parseInt(newValue.toString());
+    		  } else {
+    			  pages = Integer.parseInt(newValue.toString());
+    		  }
+    		  addParameterPreferences(values, pages);
+    		  return true;
+    	  }
+      };
+      getPreferenceManager().findPreference("numberOfValues").setOnPreferenceChangeListener(layoutListener);
+      getPreferenceManager().findPreference("numberOfPages").setOnPreferenceChangeListener(layoutListener);
+
+      SharedPreferences preferences = getPreferenceManager().getSharedPreferences();
+      addParameterPreferences(Integer.parseInt(preferences.getString("numberOfValues", "5")), Integer.parseInt(preferences.getString("numberOfPages", "1")));
+      
+//      
+//      Intent service = new Intent(this,PebbleSportsService.class);
+//      this.startService(service);   
+
+  }
+
+  // one list per field on every page, rebuilt when the number of values or
+  // pages changes
+  private void addParameterPreferences(int values, int pages) {
+	  for (Preference preference : parameterPreferences) {
+		  screen.removePreference(preference);
+	  }
+	  parameterPreferences.clear();
+
       ArrayList<String> entries = new ArrayList<String>();
       ArrayList<String> entryValues = new ArrayList<String>();      
       for (ParameterType parameterType : MyAppSettings.ParameterType.values()) {
     	  entries.add(parameterType.getPreferenceString());
     	  entryValues.add("" + parameterType.toString());
       }
-     
-      
-      for(int i=0;(i<MyAppSettings.numFields);i++) {
-    	  String param = "parameter" + i;
-    	  
-    	  ListPreference listPref = new ListPreference(this);
-    	  listPref.setKey(param); //Refer to get the pref value
-    	  listPref.setEntries(entries.toArray(new CharSequence[entries.size()]));
-    	  listPref.setEntryValues(entryValues.toArray(new CharSequence[entryValues.size()]));
-      
-    	  listPref.setDialogTitle("Display parameter " + (1 + i)); 
-    	  listPref.setTitle("Display parameter " + (1 + i));
-    	  listPref.setSummary("Select parameter to display on the Pebble");
-    	  
-    	  screen.addPreference(listPref);
-      }
-      
-//      
-//      Intent service = new Intent(this,PebbleSportsService.class);
-//      this.startService(service);   
 
-  }
+      values = Math.max(1, Math.min(MyAppSettings.MAX_FIELDS, values));
+      pages = Math.max(1, Math.min(MyAppSettings.MAX_PAGES, pages));
+      for(int page=0;(page<pages);page++) {
+    	  for(int i=0;(i<values);i++) {
+    		  ListPreference listPref = new ListPreference(this);
+    		  listPref.setKey(MyAppSettings.getPreferenceKey(page, i)); //Refer to get the pref value
+    		  listPref.setEntries(entries.toArray(new CharSequence[entries.size()]));
+    		  listPref.setEntryValues(entryValues.toArray(new CharSequence[entryValues.size()]));
+
+    		  String title = pages > 1 ? "Page " + (1 + page) + ", parameter " + (1 + i) : "Display parameter " + (1 + i);
+    		  listPref.setDialogTitle(title); 
+    		  listPref.setTitle(title);
+    		  listPref.setSummary("Select parameter to display on the Pebble");
 
-  
+    		  screen.addPreference(listPref);
+    		  parameterPreferences.add(listPref);
+    	  }
+      }
+  }
 }
@@ -0,0 +1,265 @@
+package org.meulenhoff.pebblemytracks;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.google.android.apps.mytracks.services.ITrackRecordingService;
+
+// binding to the MyTracks recording service. The service is bound once and
+// rebound with an increasing delay when the bind fails or the connection is
+// lost, connect() does nothing while the rebind is pending. The recording
+// state is cached: it is updated from the MyTracks broadcasts and from the
+// commands sent through this connection, and only queried over IPC when it
+// is older than STATE_MAX_AGE. All methods must be called on the event loop,
+// except disconnect(), which may also be called once the event loop has
+// stopped.
+public class MyTracksConnection {
+	private final String TAG = "PebbleMyTracks";
+	public static final long STATE_MAX_AGE = 15000;
+	public static final long RECONNECT_MIN_DELAY = 1000;
+	public static final long RECONNECT_MAX_DELAY = 60000;
+
+	// starts, binds and stops the MyTracks service. The result of a bind
+	// arrives through onServiceConnected() and onServiceDisconnected() on the
+	// event loop. Replaced by a fake service in tests.
+	interface ServiceBinder {
+		// returns false when the service cannot be bound
+		boolean bind();
+		void unbind();
+		void stop();
+	}
+
+	// the calls of the MyTracks recording service used here
+	interface RecordingService {
+		boolean isRecording() throws RemoteException;
+		boolean isPaused() throws RemoteException;
+		void startNewTrack() throws RemoteException;
+		void endCurrentTrack() throws RemoteException;
+		void pauseCurrentTrack() throws RemoteException;
+		void resumeCurrentTrack() throws RemoteException;
+	}
+
+	private ServiceBinder binder;
+	private EventLoop eventLoop;
+
+	private RecordingService myTracksService;
+	private boolean bound;
+	private boolean reconnectPending;
+	private long reconnectDelay;
+
+	private byte state;
+	private long stateTime;
+	private boolean stateKnown;
+
+	public MyTracksConnection(Context context, EventLoop eventLoop) {
+		this(eventLoop);
+		binder = new ContextServiceBinder(context);
+	}
+
+	MyTracksConnection(ServiceBinder binder, EventLoop eventLoop) {
+		this(eventLoop);
+		this.binder = binder;
+	}
+
+	private MyTracksConnection(EventLoop eventLoop) {
+		this.eventLoop = eventLoop;
+		myTracksService = null;
+		bound = false;
+		reconnectPending = false;
+		reconnectDelay = RECONNECT_MIN_DELAY;
+		stateKnown = false;
+	}
+
+	// binds through the context, the binder callbacks arrive on the main
+	// thread and are passed to the event loop
+	private class ContextServiceBinder implements ServiceBinder {
+		private Context context;
+
+		private ServiceConnection serviceConnection = new ServiceConnection() {
+			@Override
+			public void onServiceConnected(ComponentName className, IBinder service) {
+				final RecordingService connected = wrap(ITrackRecordingService.Stub.asInterface(service));
+				eventLoop.post(new Runnable() {
+					public void run() {
+						MyTracksConnection.this.onServiceConnected(connected);
+					}
+				});
+			}
+
+			@Override
+			public void onServiceDisconnected(ComponentName className) {
+				eventLoop.post(new Runnable() {
+					public void run() {
+						MyTracksConnection.this.onServiceDisconnected();
+					}
+				});
+			}
+		};
+
+		ContextServiceBinder(Context context) {
+			this.context = context;
+		}
+
+		private RecordingService wrap(final ITrackRecordingService service) {
+			return new RecordingService() {
+				public boolean isRecording() throws RemoteException {
+					return service.isRecording();
+				}
+
+				public boolean isPaused() throws RemoteException {
+					return service.isPaused();
+				}
+
+				public void startNewTrack() throws RemoteException {
+					service.startNewTrack();
+				}
+
+				public void endCurrentTrack() throws RemoteException {
+					service.endCurrentTrack();
+				}
+
+				public void pauseCurrentTrack() throws RemoteException {
+					service.pauseCurrentTrack();
+				}
+
+				public void resumeCurrentTrack() throws RemoteException {
+					service.resumeCurrentTrack();
+				}
+			};
+		}
+
+		private Intent getServiceIntent() {
+			Intent intent = new Intent();
+			ComponentName componentName = new ComponentName(context.getString(R.string.mytracks_service_package), context.getString(R.string.mytracks_service_class));
+			intent.setComponent(componentName);
+			return intent;
+		}
+
+		public boolean bind() {
+			Intent intent = getServiceIntent();
+			context.startService(intent);
+			return context.bindService(intent, serviceConnection, 0);
+		}
+
+		public void unbind() {
+			context.unbindService(serviceConnection);
+		}
+
+		public void stop() {
+			context.stopService(getServiceIntent());
+		}
+	}
+
+	void onServiceConnected(RecordingService service) {
+		Log.i(TAG,"Bound to MyTracks Service");
+		myTracksService = service;
+		reconnectDelay = RECONNECT_MIN_DELAY;
+		stateKnown = false;
+	}
+
+	void onServiceDisconnected() {
+		Log.i(TAG,"Connection to MyTracks lost, reconnecting in " + reconnectDelay + " ms");
+		myTracksService = null;
+		stateKnown = false;
+		if ( bound ) {
+			binder.unbind();
+			bound = false;
+		}
+		scheduleReconnect();
+	}
+
+	private void scheduleReconnect() {
+		if ( reconnectPending ) {
+			return;
+		}
+		reconnectPending = true;
+		eventLoop.postDelayed(reconnect, reconnectDelay);
+		reconnectDelay = Math.min(reconnectDelay * 2, RECONNECT_MAX_DELAY);
+	}
+
+	private final Runnable reconnect = new Runnable() {
+		public void run() {
+			reconnectPending = false;
+			connect();
+		}
+	};
+
+	// start and bind the MyTracks service, does nothing while a binding
+	// exists or a rebind is pending
+	public void connect() {
+		if (( bound )||( reconnectPending )) {
+			return;
+		}
+		bound = binder.bind();
+		if ( !bound ) {
+			Log.i(TAG,"Cannot bind MyTracks Service, retrying in " + reconnectDelay + " ms");
+			scheduleReconnect();
+		}
+	}
+
+	// unbind and stop the MyTracks service. Safe on another thread once
+	// EventLoop.quit() has ended the loop thread: no task runs anymore and
+	// the callbacks of the binding are no longer accepted by the loop.
+	public void disconnect() {
+		eventLoop.removeCallbacks(reconnect);
+		reconnectPending = false;
+		if ( bound ) {
+			Log.i(TAG,"Stopping service");
+			binder.unbind();
+			bound = false;
+			binder.stop();
+		}
+		myTracksService = null;
+	}
+
+	public boolean isConnected() {
+		return myTracksService != null;
+	}
+
+	// MyTracks broadcasts and our own commands keep the state up to date
+	public void setState(byte state) {
+		this.state = state;
+		stateTime = eventLoop.now();
+		stateKnown = true;
+	}
+
+	public void invalidateState() {
+		stateKnown = false;
+	}
+
+	public byte getState() throws RemoteException {
+		if (( myTracksService != null )&&(( !stateKnown )||( eventLoop.now() - stateTime > STATE_MAX_AGE ))) {
+			if ( myTracksService.isRecording() ) {
+				setState(myTracksService.isPaused() ? (byte)PebbleSportsService.STATE_MYTRACKS_PAUSED : (byte)PebbleSportsService.STATE_MYTRACKS_RECORDING);
+			} else {
+				setState((byte)PebbleSportsService.STATE_MYTRACKS_NOTHING);
+			}
+		}
+		return stateKnown ? state : (byte)PebbleSportsService.STATE_MYTRACKS_NULL;
+	}
+
+	public void startNewTrack() throws RemoteException {
+		myTracksService.startNewTrack();
+		setState((byte)PebbleSportsService.STATE_MYTRACKS_RECORDING);
+	}
+
+	public void endCurrentTrack() throws RemoteException {
+		myTracksService.endCurrentTrack();
+		setState((byte)PebbleSportsService.STATE_MYTRACKS_NOTHING);
+	}
+
+	public void pauseCurrentTrack() throws RemoteException {
+		myTracksService.pauseCurrentTrack();
+		setState((byte)PebbleSportsService.STATE_MYTRACKS_PAUSED);
+	}
+
+	public void resumeCurrentTrack() throws RemoteException {
+		myTracksService.resumeCurrentTrack();
+		setState((byte)PebbleSportsService.STATE_MYTRACKS_RECORDING);
+	}
+}
@@ -27,8 +27,8 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
-import android.widget.Toast;
 
 public class MyTracksReceiver extends BroadcastReceiver {
   public final static String TAG = "PebbleMyTracks";
@@ -51,7 +51,6 @@ public class MyTracksReceiver extends BroadcastReceiver {
   public void onReceive(Context context, Intent intent) {
     String action = intent.getAction();
     Log.i(TAG,"onReceive (action = " + action + ")");
-	Toast.makeText(context, "Intent action: " + action, Toast.LENGTH_LONG).show();
 
 	
 	
@@ -82,10 +81,12 @@ public class MyTracksReceiver extends BroadcastReceiver {
       context.startService(service);
      
     } else if ( action.equals("com.getpebble.action.app.RECEIVE") ) {
-//    	Log.i(TAG,"dumping intent");      
-//    	dumpIntent(intent);
+        final long time = SystemClock.elapsedRealtime();
 
+        // ack right away, the watch does not have to wait for the command
     	final int transactionId = intent.getIntExtra(Constants.TRANSACTION_ID, -1);
+        PebbleKit.sendAckToPebble(context, transactionId);
+
         final String jsonData = intent.getStringExtra(Constants.MSG_DATA);
         if (jsonData == null || jsonData.length() == 0  ) {
             Log.i(TAG,"jsonData null");
@@ -94,20 +95,28 @@ public class MyTracksReceiver extends BroadcastReceiver {
            
         try {
             final PebbleDictionary data = PebbleDictionary.fromJson(jsonData);
-            // do what you need with the data
-            PebbleKit.sendAckToPebble(context, transactionId);
-
+            int cmd;
             if ( data.contains(0x0) ) {
-            	Intent service = new Intent(context,PebbleSportsService.class);
-            	service.putExtra("CMD", data.getUnsignedInteger(0x0).intValue());
-            	context.startService(service);
+            	cmd = data.getUnsignedInteger(0x0).intValue();
             } else if ( data.contains(Constants.SPORTS_STATE_KEY) ) {
-            	Intent service = new Intent(context,PebbleSportsService.class);            	
-            	service.putExtra("CMD", data.getUnsignedInteger(Constants.SPORTS_STATE_KEY).intValue());
-            	context.startService(service);            	
+            	cmd = data.getUnsignedInteger(Constants.SPORTS_STATE_KEY).intValue();
             } else {
             	dumpIntent(intent);
-            }      
+            	return;
+            }
+            // command arguments
+            int arg1 = data.contains(0x1) ? data.getUnsignedInteger(0x1).intValue() : CommandChannel.ARG_NONE;
+            int arg2 = data.contains(0x2) ? data.getUnsignedInteger(0x2).intValue() : CommandChannel.ARG_NONE;
+
+            // straight to the running service, start it when it is not
+            if ( !CommandChannel.offer(cmd, arg1, arg2, time) ) {
+            	Intent service = new Intent(context,PebbleSportsService.class);
+            	service.putExtra("CMD", cmd);
+            	service.putExtra("ARG1", arg1);
+            	service.putExtra("ARG2", arg2);
+            	service.putExtra("TIME", time);
+            	context.startService(service);
+            }
         } catch (JSONException e) {
             Log.i(TAG,"failed reived -> dict" + e);
             return;
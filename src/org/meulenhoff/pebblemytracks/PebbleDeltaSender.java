@@ -0,0 +1,436 @@
+package org.meulenhoff.pebblemytracks;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.util.Log;
+
+import com.getpebble.android.kit.PebbleKit;
+import com.getpebble.android.kit.util.PebbleDictionary;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.UUID;
+
+// sends only the keys whose value changed since the last message the watch
+// acknowledged. At most one message per app is in flight, values added in the
+// meantime are queued and a newer value replaces a queued one. A message that
+// is not acknowledged within ACK_TIMEOUT or is nacked is retried with the
+// newest values up to MAX_RETRIES times. Every FULL_REFRESH_INTERVAL messages,
+// after invalidate() and after a dropped message the watch values are
+// forgotten, so every key is sent again the next time it is added.
+//
+// Whole messages such as summaries and laps are enqueued and share the
+// in-flight slot of the app. They go out in order, before the queued keys,
+// and are retried the same way.
+// All methods except the ack handlers must be called on the event loop.
+//
+// An unchanged key allocates nothing: the rendered buffer is compared with
+// the expected value in place. A changed key allocates its String or byte
+// array, a Value holder and, when the key was not queued yet, a map entry.
+// Every dispatch allocates the PebbleDictionary, its tuples and the new
+// queue map.
+public class PebbleDeltaSender {
+	private final String TAG = "PebbleMyTracks";
+	public static final int FULL_REFRESH_INTERVAL = 30;
+	public static final int MAX_RETRIES = 3;
+	public static final long ACK_TIMEOUT = 5000;
+	// enqueued messages per app, the oldest is dropped when full
+	public static final int MAX_MESSAGES = 8;
+
+	private static final int TYPE_STRING = 0;
+	private static final int TYPE_INT8 = 1;
+	private static final int TYPE_UINT8 = 2;
+	private static final int TYPE_BYTES = 3;
+
+	private static class Value {
+		int type;
+		Object value;
+
+		Value(int type, Object value) {
+			this.type = type;
+			this.value = value;
+		}
+	}
+
+	private class AppState implements Runnable {
+		UUID uuid;
+		Map<Integer,Object> acknowledged = new HashMap<Integer,Object>();
+		Map<Integer,Value> queued = new HashMap<Integer,Value>();
+		Map<Integer,Value> inFlight = null;
+		LinkedList<PebbleDictionary> messages = new LinkedList<PebbleDictionary>();
+		PebbleDictionary messageInFlight = null;
+		// false when the watch was resynchronised after the message in
+		// flight was sent, its values no longer count as the watch values
+		boolean inFlightValid;
+		int transactionId;
+		int retries;
+		long sendTime;
+		int count = 0;
+
+		AppState(UUID uuid) {
+			this.uuid = uuid;
+		}
+
+		boolean isBusy() {
+			return ( inFlight != null )||( messageInFlight != null );
+		}
+
+		// ack timeout
+		public void run() {
+			if ( isBusy() ) {
+				Log.i(TAG,"No ack for transaction " + transactionId);
+				retry(this);
+			}
+		}
+	}
+
+	private Context context;
+	private EventLoop eventLoop;
+	private Map<UUID,AppState> apps = new HashMap<UUID,AppState>();
+	private Map<Integer,AppState> transactions = new HashMap<Integer,AppState>();
+	private int nextTransactionId = 0;
+
+	private BroadcastReceiver ackReceiver;
+	private BroadcastReceiver nackReceiver;
+
+	// counters
+	private int messagesSent;
+	private int messagesAcked;
+	private int messagesRetried;
+	private int messagesDropped;
+	private long totalLatency;
+	private long maxLatency;
+
+	public PebbleDeltaSender(Context context, EventLoop eventLoop) {
+		this.context = context;
+		this.eventLoop = eventLoop;
+	}
+
+	public void start() {
+		// acks carry no app uuid, the transaction id identifies the message
+		ackReceiver = PebbleKit.registerReceivedAckHandler(context, new PebbleKit.PebbleAckReceiver(null) {
+			@Override
+			public void receiveAck(Context context, final int transactionId) {
+				postReply(new Runnable() {
+					public void run() {
+						onAck(transactionId);
+					}
+				});
+			}
+		});
+		nackReceiver = PebbleKit.registerReceivedNackHandler(context, new PebbleKit.PebbleNackReceiver(null) {
+			@Override
+			public void receiveNack(Context context, final int transactionId) {
+				postReply(new Runnable() {
+					public void run() {
+						onNack(transactionId);
+					}
+				});
+			}
+		});
+	}
+
+	// acks and nacks go to the delayed tasks, which are not bounded like the
+	// immediate queue. A lost ack would resend a message that arrived after
+	// the ack timeout.
+	private void postReply(Runnable reply) {
+		if ( !eventLoop.postDelayed(reply, 0) ) {
+			Log.i(TAG,"Dropped ack or nack, the event loop has stopped");
+		}
+	}
+
+	public void stop() {
+		if ( ackReceiver != null ) {
+			context.unregisterReceiver(ackReceiver);
+			ackReceiver = null;
+		}
+		if ( nackReceiver != null ) {
+			context.unregisterReceiver(nackReceiver);
+			nackReceiver = null;
+		}
+		Log.i(TAG,"Pebble messages: " + getStatistics());
+	}
+
+	// the watch app lost its values, send every key again when it is added
+	public void invalidate(UUID uuid) {
+		resync(getState(uuid));
+	}
+
+	public void invalidateAll() {
+		for ( AppState state : apps.values() ) {
+			resync(state);
+		}
+	}
+
+	private void resync(AppState state) {
+		state.acknowledged.clear();
+		state.inFlightValid = false;
+	}
+
+	// the watch lost the value of the key, send it again when it is added
+	public void forget(UUID uuid, int key) {
+		getState(uuid).acknowledged.remove(key);
+	}
+
+	public void addString(UUID uuid, int key, String value) {
+		add(getState(uuid), key, TYPE_STRING, value);
+	}
+
+	// compares the rendered value with the previous one before creating a string
+	public void addString(UUID uuid, int key, FieldFormatter value) {
+		AppState state = getState(uuid);
+		Object expected = getExpected(state, key);
+		if (( !( expected instanceof String ) )||( !value.contentEquals((String)expected) )) {
+			add(state, key, TYPE_STRING, value.toString());
+		} else {
+			state.queued.remove(key);
+		}
+	}
+
+	public void addBytes(UUID uuid, int key, byte[] value) {
+		add(getState(uuid), key, TYPE_BYTES, value);
+	}
+
+	// compares the encoded value with the previous one before creating an array
+	public void addBytes(UUID uuid, int key, BinaryFieldEncoder value) {
+		AppState state = getState(uuid);
+		Object expected = getExpected(state, key);
+		if (( !( expected instanceof byte[] ) )||( !value.contentEquals((byte[])expected) )) {
+			add(state, key, TYPE_BYTES, value.toByteArray());
+		} else {
+			state.queued.remove(key);
+		}
+	}
+
+	public void addInt8(UUID uuid, int key, byte value) {
+		add(getState(uuid), key, TYPE_INT8, Byte.valueOf(value));
+	}
+
+	public void addUint8(UUID uuid, int key, byte value) {
+		add(getState(uuid), key, TYPE_UINT8, Byte.valueOf(value));
+	}
+
+	// send the queued keys, or leave them queued while a message is in
+	// flight. Returns false when nothing changed.
+	public boolean send(UUID uuid) {
+		AppState state = getState(uuid);
+		if ( state.queued.isEmpty() ) {
+			return false;
+		}
+		if ( !state.isBusy() ) {
+			dispatchNext(state);
+		}
+		return true;
+	}
+
+	// send a whole message once, after the message in flight
+	public void enqueue(UUID uuid, PebbleDictionary data) {
+		AppState state = getState(uuid);
+		if ( state.messages.size() >= MAX_MESSAGES ) {
+			Log.i(TAG,"Dropping message, too many queued");
+			state.messages.removeFirst();
+			messagesDropped++;
+		}
+		state.messages.add(data);
+		if ( !state.isBusy() ) {
+			dispatchNext(state);
+		}
+	}
+
+	// the next enqueued message or the queued keys
+	private void dispatchNext(AppState state) {
+		state.retries = 0;
+		if ( !state.messages.isEmpty() ) {
+			state.messageInFlight = state.messages.removeFirst();
+			transmit(state, state.messageInFlight);
+		} else if ( !state.queued.isEmpty() ) {
+			dispatch(state);
+		}
+	}
+
+	private void add(AppState state, int key, int type, Object value) {
+		if ( !same(value, getExpected(state, key)) ) {
+			state.queued.put(key, new Value(type, value));
+		} else {
+			// back at the value the watch has or will have
+			state.queued.remove(key);
+		}
+	}
+
+	private static boolean same(Object a, Object b) {
+		if (( a instanceof byte[] )&&( b instanceof byte[] )) {
+			return Arrays.equals((byte[])a, (byte[])b);
+		}
+		return ( a != null )&&( a.equals(b) );
+	}
+
+	// the value the watch will have once the message in flight arrives
+	private Object getExpected(AppState state, int key) {
+		if (( state.inFlight != null )&&( state.inFlightValid )&&( state.inFlight.containsKey(key) )) {
+			return state.inFlight.get(key).value;
+		}
+		return state.acknowledged.get(key);
+	}
+
+	private void dispatch(AppState state) {
+		PebbleDictionary data = new PebbleDictionary();
+		for ( Map.Entry<Integer,Value> entry : state.queued.entrySet() ) {
+			Value v = entry.getValue();
+			switch ( v.type ) {
+			case TYPE_STRING:
+				data.addString(entry.getKey(), (String)v.value);
+				break;
+			case TYPE_INT8:
+				data.addInt8(entry.getKey(), (Byte)v.value);
+				break;
+			case TYPE_UINT8:
+				data.addUint8(entry.getKey(), (Byte)v.value);
+				break;
+			case TYPE_BYTES:
+				data.addBytes(entry.getKey(), (byte[])v.value);
+				break;
+			}
+		}
+
+		state.inFlight = state.queued;
+		state.inFlightValid = true;
+		state.queued = new HashMap<Integer,Value>();
+		transmit(state, data);
+
+		if ( ++state.count >= FULL_REFRESH_INTERVAL ) {
+			state.count = 0;
+			resync(state);
+		}
+	}
+
+	private void transmit(AppState state, PebbleDictionary data) {
+		state.transactionId = nextTransactionId;
+		nextTransactionId = ( nextTransactionId + 1 ) % 256;
+		state.sendTime = eventLoop.now();
+		transactions.put(state.transactionId, state);
+
+		transmit(state.uuid, data, state.transactionId);
+		messagesSent++;
+		eventLoop.removeCallbacks(state);
+		eventLoop.postDelayed(state, ACK_TIMEOUT);
+	}
+
+	// hands the message to the Pebble app, replaced in tests
+	void transmit(UUID uuid, PebbleDictionary data, int transactionId) {
+		PebbleKit.sendDataToPebbleWithTransactionId(context, uuid, data, transactionId);
+	}
+
+	void onAck(int transactionId) {
+		AppState state = transactions.remove(transactionId);
+		if (( state == null )||( !state.isBusy() )||( state.transactionId != transactionId )) {
+			return;
+		}
+		eventLoop.removeCallbacks(state);
+
+		long latency = eventLoop.now() - state.sendTime;
+		messagesAcked++;
+		totalLatency += latency;
+		maxLatency = Math.max(maxLatency, latency);
+
+		if (( state.inFlight != null )&&( state.inFlightValid )) {
+			for ( Map.Entry<Integer,Value> entry : state.inFlight.entrySet() ) {
+				state.acknowledged.put(entry.getKey(), entry.getValue().value);
+			}
+		}
+		state.inFlight = null;
+		state.messageInFlight = null;
+
+		// drop queued values the watch now has
+		Iterator<Map.Entry<Integer,Value>> iterator = state.queued.entrySet().iterator();
+		while ( iterator.hasNext() ) {
+			Map.Entry<Integer,Value> entry = iterator.next();
+			if ( same(entry.getValue().value, state.acknowledged.get(entry.getKey())) ) {
+				iterator.remove();
+			}
+		}
+		dispatchNext(state);
+	}
+
+	void onNack(int transactionId) {
+		AppState state = transactions.remove(transactionId);
+		if (( state == null )||( !state.isBusy() )||( state.transactionId != transactionId )) {
+			return;
+		}
+		Log.i(TAG,"Nack for transaction " + transactionId);
+		retry(state);
+	}
+
+	// resend the failed message, or the failed values replaced by newer
+	// queued values
+	private void retry(AppState state) {
+		eventLoop.removeCallbacks(state);
+		transactions.remove(state.transactionId);
+
+		Map<Integer,Value> failed = state.inFlight;
+		PebbleDictionary failedMessage = state.messageInFlight;
+		state.inFlight = null;
+		state.messageInFlight = null;
+
+		if ( state.retries >= MAX_RETRIES ) {
+			Log.i(TAG,"Dropping message after " + state.retries + " retries");
+			messagesDropped++;
+			if ( failed != null ) {
+				// the watch state is unknown, resynchronise with the next message
+				resync(state);
+			}
+			dispatchNext(state);
+			return;
+		}
+
+		state.retries++;
+		messagesRetried++;
+		if ( failedMessage != null ) {
+			state.messageInFlight = failedMessage;
+			transmit(state, failedMessage);
+		} else {
+			failed.putAll(state.queued);
+			state.queued = failed;
+			dispatch(state);
+		}
+	}
+
+	private AppState getState(UUID uuid) {
+		AppState state = apps.get(uuid);
+		if ( state == null ) {
+			state = new AppState(uuid);
+			apps.put(uuid, state);
+		}
+		return state;
+	}
+
+	public int getMessagesSent() {
+		return messagesSent;
+	}
+
+	public int getMessagesAcked() {
+		return messagesAcked;
+	}
+
+	public int getMessagesRetried() {
+		return messagesRetried;
+	}
+
+	public int getMessagesDropped() {
+		return messagesDropped;
+	}
+
+	public long getAverageLatency() {
+		return messagesAcked > 0 ? totalLatency / messagesAcked : 0;
+	}
+
+	public long getMaxLatency() {
+		return maxLatency;
+	}
+
+	public String getStatistics() {
+		return "sent " + messagesSent + ", acked " + messagesAcked + ", retried " + messagesRetried + ", dropped " + messagesDropped + ", latency avg " + getAverageLatency() + " ms, max " + maxLatency + " ms";
+	}
+}
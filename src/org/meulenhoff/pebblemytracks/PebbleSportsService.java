@@ -1,11 +1,10 @@
 package org.meulenhoff.pebblemytracks;
 
 import android.app.Service;
-import android.content.ComponentName;
 import android.content.Intent;
-import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.database.ContentObserver;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.location.Location;
@@ -20,18 +19,18 @@ import com.getpebble.android.kit.PebbleKit;
 import com.getpebble.android.kit.util.PebbleDictionary;
 import com.google.android.apps.mytracks.content.MyTracksProviderUtils;
 import com.google.android.apps.mytracks.content.Track;
-import com.google.android.apps.mytracks.services.ITrackRecordingService;
+import com.google.android.apps.mytracks.content.TrackPointsColumns;
 import com.google.android.apps.mytracks.stats.TripStatistics;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.io.File;
+import java.io.IOException;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Locale;
 
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 import org.meulenhoff.pebblemytracks.MyAppSettings.ParameterType;
@@ -39,9 +38,9 @@ import org.meulenhoff.pebblemytracks.MyAppSettings.ParameterType;
 @SuppressWarnings("unused")
 public class PebbleSportsService extends Service implements OnSharedPreferenceChangeListener {
 	private final String TAG = "PebbleMyTracks";
-	private int tracknum = -1;
 	
 	public static final int GPS_FIX_TIMEOUT = 30000;
+	public static final double PACE_MIN_SPEED = 0.3; // m/s, slower is shown as no pace
 	// commands sent by smartphone
 	public static final int MSG_SET_VALUES = 0x1;
 	public static final int MSG_SET_NAMES = 0x2;
@@ -49,6 +48,32 @@ public class PebbleSportsService extends Service implements OnSharedPreferenceCh
 	public static final int MSG_SET_DESIREDSTATE = 0x4;
 	public static final int MSG_TRACK_SUMMARY = 0x5;
 	public static final int MSG_SET_GPSSTATUS = 0x6;
+	// batch of track summaries under consecutive keys from MSG_TRACK_SUMMARY_FIRST
+	public static final int MSG_TRACK_SUMMARY_INDEX = 0x7;
+	public static final int MSG_TRACK_SUMMARY_TOTAL = 0x8;
+	public static final int MSG_TRACK_SUMMARY_COUNT = 0x9;
+	public static final int MSG_TRACK_SUMMARY_FIRST = 0x10;
+	public static final int MAX_TRACK_SUMMARIES = 16;
+	// the track point store is pruned to half this size when it is larger,
+	// about 55 hours of points at one point per second
+	public static final int TRACK_POINT_STORE_ROWS = 200000;
+	// binary wire format: values as fixed-point integers and field type ids
+	// instead of names, see encodeField()
+	public static final int MSG_SET_BINARY_VALUES = 0xA;
+	public static final int MSG_SET_FIELD_TYPES = 0xB;
+	public static final int MSG_WIRE_FORMAT = 0xC;
+	// version of the names or field types, echoed by the watch
+	public static final int MSG_CONFIG_VERSION = 0xD;
+	// page shown on the watch and the number of pages
+	public static final int MSG_SET_PAGE = 0xE;
+	public static final int MSG_SET_PAGE_COUNT = 0xF;
+	// week and month distance and personal records, see createRecordsSummary()
+	public static final int MSG_RECORDS = 0x20;
+	// a lap was completed, see createLapSummary()
+	public static final int MSG_LAP = 0x21;
+
+	public static final int WIRE_FORMAT_STRING = 0;
+	public static final int WIRE_FORMAT_BINARY = 1;
 
 	// commands sent by the pebble
 	public static final int CMD_UNKNOWN = 0x0;
@@ -59,6 +84,12 @@ public class PebbleSportsService extends Service implements OnSharedPreferenceCh
 	public static final int CMD_GET_STATUS = 0x5;
 	public static final int CMD_TRACK_SUMMARY = 0x6;
 	public static final int CMD_NEXT_TRACK_SUMMARY = 0x7;
+	public static final int CMD_TRACK_SUMMARIES = 0x8;
+	public static final int CMD_SET_WIRE_FORMAT = 0x9;
+	public static final int CMD_CONFIG_VERSION = 0xA;
+	public static final int CMD_SET_PAGE = 0xB;
+	public static final int CMD_RECORDS = 0xC;
+	public static final int CMD_LAP = 0xD;
 	public static final int EVENT_MYTRACKS_STARTED = 0x10;
 	public static final int EVENT_MYTRACKS_STOPPED = 0x11;
 
@@ -68,21 +99,44 @@ public class PebbleSportsService extends Service implements OnSharedPreferenceCh
 	public static final int STATE_MYTRACKS_RECORDING = 0x2;
 	public static final int STATE_MYTRACKS_PAUSED = 0x3;
 
-	public byte currentState;
-	public byte desiredState;
-	public byte currentCommand;
+	// only accessed from the event loop
+	private byte currentState;
+	private byte desiredState;
+	private byte currentCommand;
 
-	private ITrackRecordingService myTracksService;
+	private MyTracksConnection myTracksConnection;
 	private MyAppSettings myAppSettings;
 
 	private int updateInterval;
+	private int maxUpdateInterval;
+	private AdaptiveInterval adaptiveInterval;
+	private boolean pushUpdates;
+	private boolean trackPointsObserverRegistered;
+	private long lastUpdateTime;
+	private long nextUpdateTime;
 	private SportsData sportsData;
 	private boolean metricUnits;
-	public boolean myapp;
+	private boolean myapp;
 	private UUID appUUID;
 	private UUID alternativeAppUUID; // = UUID.fromString("5E1ED09C-2624-4F25-8EC1-32B0563036AC");
 
-	private int sendConfig;
+	private int configVersion;
+	private boolean configConfirmed;
+	private String configSignature;
+	// names, field types and display plans per page, only the visible page
+	// is rendered and sent
+	private String[] pageNames;
+	private byte[][] pageTypes;
+	private DisplayPlan[] pagePlans;
+	private int visiblePage;
+	private String valueNames;
+	private byte[] fieldTypes;
+	private int wireFormat;
+	private FieldFormatter fieldFormatter = new FieldFormatter();
+	private BinaryFieldEncoder binaryEncoder = new BinaryFieldEncoder();
+	// replaced as a whole, summaries are also rendered on the background executor
+	private volatile DisplayPlan displayPlan;
+	private PebbleDeltaSender pebbleSender;
 
 	// pebble stuff
 	private PebbleKit.PebbleDataReceiver sportsDataHandler = null;
@@ -90,56 +144,115 @@ public class PebbleSportsService extends Service implements OnSharedPreferenceCh
 
 	// mytracks stuff
 	private MyTracksProviderUtils myTracksProviderUtils;
-
-	// timer for repetitive updates of the pebble
-	private ScheduledExecutorService scheduleTaskExecutor;
+	private TrackStateCache trackStateCache;
+	// local copy of the streamed track points for history scans
+	private TrackPointStore trackPointStore;
+	private SpeedEstimator speedEstimator = new SpeedEstimator();
+	private TrackStatisticsEngine statisticsEngine = new TrackStatisticsEngine();
+	private LapEngine lapEngine = new LapEngine();
+	// laps of lapEngine that were sent to the watch
+	private int sentLaps;
+	private TrackIndex trackIndex;
+	private ExecutorService indexWorker;
+	private TrackIndexer trackIndexer;
+	private TrackSummaryBrowser trackSummaryBrowser;
+
+	// serial loop for commands, events and the repetitive updates of the pebble
+	private EventLoop eventLoop;
+	private boolean updating;
+	private CommandCoalescer commandCoalescer = new CommandCoalescer(new int[][] {
+		{ CMD_PAUSE_TRACK, CMD_RESUME_TRACK }, { CMD_START_TRACK, CMD_STOP_TRACK }
+	});
+	// from receiving a track command to calling MyTracks, including the
+	// coalescing window
+	private long commandReceiveTime;
+	private int commandLatencyCount;
+	private long commandLatencyTotal;
+	private long commandLatencyMax;
+	private WatchConnectionTracker watchConnection;
+	private boolean pausedForWatch;
+
+	// worker for maintenance of the persisted indexes
+	private ExecutorService backgroundExecutor;
 	//  private Intent intent;
 
 
-	// connection to the MyTracks service
-	private ServiceConnection serviceConnection = new ServiceConnection() {
+	// new track points written by MyTracks trigger an update in push mode
+	private ContentObserver trackPointsObserver = new ContentObserver(null) {
 		@Override
-		public void onServiceConnected(ComponentName className, IBinder service) {
-			myTracksService = ITrackRecordingService.Stub.asInterface(service);
-			Log.i(TAG,"Bound to MyTracks Service");
+		public void onChange(boolean selfChange) {
+			eventLoop.post(trackPointsChanged);
 		}
+	};
 
-		@Override
-		public void onServiceDisconnected(ComponentName className) {
-
-
-
-			// unbind and stop the MyTracks service
-			unbindService(serviceConnection);
-			myTracksService = null;
-
-			Log.i(TAG,"Connection to MyTracks lost");
-			Intent intent = new Intent();
-			ComponentName componentName = new ComponentName(getString(R.string.mytracks_service_package), getString(R.string.mytracks_service_class));
-			intent.setComponent(componentName);
-			stopService(intent);	      
+	private final Runnable trackPointsChanged = new Runnable() {
+		public void run() {
+			// never update the pebble more often than the update interval
+			long now = eventLoop.now();
+			long time = Math.max(now, lastUpdateTime + updateInterval);
+			if ( time < nextUpdateTime ) {
+				scheduleUpdate(time - now);
+			}
 		}
 	};
 
+	private void registerTrackPointsObserver() {
+		if ( pushUpdates && !trackPointsObserverRegistered ) {
+			Log.i(TAG,"Registering track points observer");
+			getContentResolver().registerContentObserver(TrackPointsColumns.CONTENT_URI, true, trackPointsObserver);
+			trackPointsObserverRegistered = true;
+		} else if ( !pushUpdates && trackPointsObserverRegistered ) {
+			Log.i(TAG,"Unregistering track points observer");
+			getContentResolver().unregisterContentObserver(trackPointsObserver);
+			trackPointsObserverRegistered = false;
+		}
+	}
 
 	@Override
 	public void onDestroy() {
 		Toast.makeText(this, "onDestroy service", Toast.LENGTH_LONG).show();
 
 
-		if ( myTracksService != null ) {
-			Log.i(TAG,"Stopping service");
-			unbindService(serviceConnection);
-			Intent intent = new Intent();
-			ComponentName componentName = new ComponentName(getString(R.string.mytracks_service_package), getString(R.string.mytracks_service_class));
-			intent.setComponent(componentName);
-			stopService(intent);	      
+		CommandChannel.unregister(commandSink);
+		Log.i(TAG,"Stop event loop");
+		eventLoop.quit();
+		// the loop has stopped, so the connection is no longer used by it
+		myTracksConnection.disconnect();
+		watchConnection.stop();
+		pebbleSender.stop();
+
+		if ( trackPointsObserverRegistered ) {
+			getContentResolver().unregisterContentObserver(trackPointsObserver);
+			trackPointsObserverRegistered = false;
 		}
 
-		Log.i(TAG,"Stop scheduled task");
-		if ( scheduleTaskExecutor != null ) {
-			scheduleTaskExecutor.shutdown();
-			scheduleTaskExecutor = null;
+		if ( trackPointStore != null ) {
+			try {
+				trackPointStore.close();
+			} catch ( IOException e ) {
+				Log.i(TAG,"Exception during track point store close: " + e.getMessage());
+			}
+			trackPointStore = null;
+		}
+
+		if ( indexWorker != null ) {
+			indexWorker.shutdownNow();
+			try {
+				indexWorker.awaitTermination(EventLoop.QUIT_TIMEOUT, TimeUnit.MILLISECONDS);
+			} catch ( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+			}
+			indexWorker = null;
+		}
+
+		if ( trackIndex != null ) {
+			trackIndex.close();
+			trackIndex = null;
+		}
+
+		if ( backgroundExecutor != null ) {
+			backgroundExecutor.shutdownNow();
+			backgroundExecutor = null;
 		}
 
 		Log.i(TAG,"Stop sportsDataHandler");
@@ -160,23 +273,122 @@ public class PebbleSportsService extends Service implements OnSharedPreferenceCh
 		Log.i(TAG,"onCreate Started");
 		super.onCreate();
 
+		eventLoop = new EventLoop("PebbleSportsService");
+		myTracksConnection = new MyTracksConnection(this, eventLoop);
+		watchConnection = new WatchConnectionTracker(this, eventLoop, new WatchConnectionTracker.Listener() {
+			public void onWatchConnectionChanged(boolean connected) {
+				if ( connected ) {
+					// the watch lost its state, resend everything
+					pebbleSender.invalidateAll();
+					if ( pausedForWatch ) {
+						Log.i(TAG,"Watch reconnected, resuming updater");
+						pausedForWatch = false;
+						startUpdater();
+					}
+				} else {
+					pauseUpdaterForWatch();
+				}
+			}
+		});
+		watchConnection.start();
+		pausedForWatch = false;
 
 		currentState = STATE_MYTRACKS_NOTHING;
 		desiredState = STATE_MYTRACKS_NOTHING;
 		currentCommand = CMD_UNKNOWN;
+		// the watch app asks for the binary format when it supports it
+		wireFormat = WIRE_FORMAT_STRING;
 
 
 		sportsData = new SportsData();		
+		pebbleSender = new PebbleDeltaSender(getApplicationContext(), eventLoop);
+		pebbleSender.start();
 		myAppSettings = new MyAppSettings();
+		adaptiveInterval = new AdaptiveInterval(5000, 5000);
 		myTracksProviderUtils = MyTracksProviderUtils.Factory.get(getApplicationContext());
+		try {
+			trackPointStore = new TrackPointStore(new File(getFilesDir(), "trackpoints"));
+			if ( trackPointStore.size() > TRACK_POINT_STORE_ROWS ) {
+				int pruned = trackPointStore.prune(TRACK_POINT_STORE_ROWS / 2);
+				Log.i(TAG,"Track point store: dropped " + pruned + " points of old tracks");
+			}
+		} catch ( IOException e ) {
+			Log.i(TAG,"Track point store not available: " + e.getMessage());
+			trackPointStore = null;
+		}
+		trackStateCache = new TrackStateCache(myTracksProviderUtils, trackPointStore);
+		trackStateCache.addListener(new TrackStateCache.Listener() {
+			public void onTrackChanged(long trackId) {
+				speedEstimator.reset();
+				statisticsEngine.reset();
+				lapEngine.reset();
+				TripStatistics statistics = trackStateCache.getStatistics();
+				if ( statistics != null ) {
+					statisticsEngine.seed(statistics.getMaxSpeed(), statistics.getMinElevation(), statistics.getMaxElevation(),
+							statistics.getMinGrade(), statistics.getMaxGrade());
+				}
+			}
+
+			public void onTrackLoaded(long trackId) {
+				// the laps of the replayed points were done before
+				sentLaps = lapEngine.getCompletedLaps();
+			}
+
+			public void onTrackPoint(long time, double distance, double altitude, double speed) {
+				speedEstimator.add(time, distance, speed);
+				statisticsEngine.add(distance, altitude, speed, time);
+				lapEngine.add(distance, time);
+			}
+		});
+		backgroundExecutor = Executors.newSingleThreadExecutor();
+		trackIndex = new TrackIndex(this);
+		trackIndexer = new TrackIndexer(trackIndex);
+		trackSummaryBrowser = new TrackSummaryBrowser(getContentResolver(), new TrackSummaryBrowser.Renderer() {
+			public String createTrackSummary(long trackId) {
+				// finished tracks come from the index, the most recent track
+				// may still be recording and is rendered from MyTracks
+				String summary = trackIndex.getSummary(trackId, displayPlan.isMetric());
+				if ( summary != null ) {
+					return summary;
+				}
+				Track track = myTracksProviderUtils.getTrack(trackId);
+				if ( track == null ) {
+					return null;
+				}
+				return PebbleSportsService.this.createTrackSummary(track.getTripStatistics());
+			}
+		}, backgroundExecutor);
+
+		// bring the track index up to date with the tracks recorded since
+		// the last start, at low priority so it does not compete with the
+		// updates. Finished tracks are indexed and the index is read on the
+		// same worker.
+		indexWorker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "TrackIndexer");
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+		indexWorker.execute(new Runnable() {
+			public void run() {
+				try {
+					trackIndexer.refresh(getContentResolver());
+					postIndexedValues();
+				} catch ( Exception e ) {
+					Log.i(TAG,"Exception during track index refresh: " + e.getMessage());
+				}
+			}
+		});
 
 		// Initialize preferences
 		preferences = PreferenceManager.getDefaultSharedPreferences(this);   
 		preferences.registerOnSharedPreferenceChangeListener(this);
 
 		reloadPreferences();		
+		registerTrackPointsObserver();
 
-		scheduleTaskExecutor = null;
+		updating = false;
 		// To receive data back from the sports watch-app, Android
 		// applications must register a "DataReceiver" to operate on the
 		// dictionaries received from the watch.
@@ -186,8 +398,14 @@ public class PebbleSportsService extends Service implements OnSharedPreferenceCh
 		// us the pause/resume the activity when the user presses a
 		// button in the watch-app.
 
-		startMyTracksService();
-		startUpdater();
+		eventLoop.start();
+		CommandChannel.register(commandSink);
+		eventLoop.post(new Runnable() {
+			public void run() {
+				myTracksConnection.connect();
+				startUpdater();
+			}
+		});
 
 		Log.i(TAG,"finished onCreate");
 	}
@@ -205,198 +423,410 @@ public class PebbleSportsService extends Service implements OnSharedPreferenceCh
 		}
 
 		updateInterval = Integer.parseInt(preferences.getString("updateInterval", "5000"));
+		maxUpdateInterval = Integer.parseInt(preferences.getString("maxUpdateInterval", "30000"));
+		adaptiveInterval.setBounds(updateInterval, maxUpdateInterval);
+		pushUpdates = preferences.getBoolean("pushUpdates", false);
 
 		metricUnits = preferences.getBoolean("metric", true);
-		for(int i=0;(i<MyAppSettings.numFields);i++) {
-			String param = "parameter" + i;
-			String value = preferences.getString(param,ParameterType.NOTHING.getPreferenceString());        
-			//			Log.i(TAG,"parameter"+ i+ ": " + value);  
-			myAppSettings.setParameter(i, ParameterType.valueOf(value));
+		double lapDistance;
+		try {
+			lapDistance = Double.parseDouble(preferences.getString("lapDistance", "0"));
+		} catch ( NumberFormatException e ) {
+			lapDistance = 0;
+		}
+		lapEngine.setLapLength(lapDistance / ( metricUnits ? SportsData.M_TO_KM : SportsData.M_TO_MILE ));
+		myAppSettings.setNumberOfValues(Integer.parseInt(preferences.getString("numberOfValues", "5")));
+		myAppSettings.setNumberOfPages(Integer.parseInt(preferences.getString("numberOfPages", "1")));
+		int numberOfPages = myAppSettings.getNumberOfPages();
+		int numberOfValues = myAppSettings.getNumberOfValues();
+		StringBuilder signature = new StringBuilder();
+		signature.append(metricUnits);
+		for(int page=0;(page<numberOfPages);page++) {
+			signature.append('|');
+			for(int i=0;(i<numberOfValues);i++) {
+				String value = preferences.getString(MyAppSettings.getPreferenceKey(page, i),ParameterType.NOTHING.toString());
+				ParameterType type;
+				try {
+					type = ParameterType.valueOf(value);
+				} catch ( IllegalArgumentException e ) {
+					type = ParameterType.NOTHING;
+				}
+				myAppSettings.setParameter(page, i, type);
+				signature.append(type.getWireId()).append(',');
+			}
+		}
+
+		pageNames = new String[numberOfPages];
+		pageTypes = new byte[numberOfPages][];
+		pagePlans = new DisplayPlan[numberOfPages];
+		for(int page=0;(page<numberOfPages);page++) {
+			ParameterType[] types = myAppSettings.getPage(page);
+			pagePlans[page] = new DisplayPlan(types, metricUnits);
+			StringBuilder names = new StringBuilder();
+			pageTypes[page] = new byte[numberOfValues + 1];
+			pageTypes[page][0] = getSportsUnits(pagePlans[page]);
+			for(int i=0;(i<numberOfValues);i++) {
+				if ( i > 0 ) {
+					names.append(';');
+				}
+				names.append(types[i].getPebbleString());
+				pageTypes[page][i + 1] = types[i].getWireId();
+			}
+			pageNames[page] = names.toString();
+		}
+		selectPage(visiblePage);
+
+		if ( !signature.toString().equals(configSignature) ) {
+			configSignature = signature.toString();
+			bumpConfigVersion();
 		}
 
 	}
 
+	// only the fields of this page are computed and sent
+	private void selectPage(int page) {
+		if (( page < 0 )||( page >= pagePlans.length )) {
+			page = 0;
+		}
+		visiblePage = page;
+		displayPlan = pagePlans[page];
+		valueNames = pageNames[page];
+		fieldTypes = pageTypes[page];
+	}
+
+	// the version is kept across restarts of the service, so a watch app that
+	// holds the names of a previous run sees a different version
+	private void bumpConfigVersion() {
+		SharedPreferences config = getSharedPreferences("config", MODE_PRIVATE);
+		configVersion = config.getInt("version", 0) % 255 + 1;
+		SharedPreferences.Editor editor = config.edit();
+		editor.putInt("version", configVersion);
+		editor.commit();
+		configConfirmed = false;
+		Log.i(TAG,"Config version " + configVersion);
+	}
+
+	// the watch has no or other names, send them again
+	private void resendConfig() {
+		configConfirmed = false;
+		pebbleSender.forget(alternativeAppUUID, MSG_SET_NAMES);
+		pebbleSender.forget(alternativeAppUUID, MSG_SET_FIELD_TYPES);
+		pebbleSender.forget(alternativeAppUUID, MSG_CONFIG_VERSION);
+		pebbleSender.forget(alternativeAppUUID, MSG_SET_PAGE);
+		pebbleSender.forget(alternativeAppUUID, MSG_SET_PAGE_COUNT);
+	}
+
 	@Override
 	public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
-		reloadPreferences();
-		sendConfig = 5;
+		eventLoop.post(new Runnable() {
+			public void run() {
+				reloadPreferences();
+				registerTrackPointsObserver();
+				trackSummaryBrowser.clearSummaries();
+
+				// apply a changed interval to the running updater
+				scheduleUpdate(adaptiveInterval.getInterval());
+			}
+		});
 	};
 
-	public void stopUpdater() {
+	private void stopUpdater() {
 		Log.i(TAG,"Calling stopUpdater");
-		if ( scheduleTaskExecutor != null ) {
+		if ( updating ) {
 			Log.i(TAG,"Shuttinng down");
-			scheduleTaskExecutor.shutdown();
-			scheduleTaskExecutor = null;
+			eventLoop.removeCallbacks(updateRunnable);
+			updating = false;
 		}		
 		Log.i(TAG,"Done stopUpdater");
 
 	}
 
-	public void startUpdater() {
-		if ( scheduleTaskExecutor != null ) {
+	// stop updating while the watch is away, the updater is resumed when the
+	// watch connects again
+	private void pauseUpdaterForWatch() {
+		if ( updating ) {
+			Log.i(TAG,"Watch disconnected, pausing updater");
+			pausedForWatch = true;
+			stopUpdater();
+		}
+	}
+
+	private void startUpdater() {
+		if ( updating ) {
 			return;
 		}
 		Log.i(TAG,"Starting updater");
 		//		// recreate new
 
 
-
-		sendConfig = 10;
+		pebbleSender.invalidateAll();
 		initSportsData();
-		scheduleTaskExecutor= Executors.newScheduledThreadPool(5);
-		scheduleTaskExecutor.scheduleWithFixedDelay(new Runnable() {
-			public void run() {   
-				try {
-					// update sports data
-					updateMyTracks();				
-					updateSportsData();
-
-					if ( myapp ) {
-						updateMyApp();
-					} else {
-						updatePebbleSportsApp();
-					}
-				} catch ( Exception e ) {
-					Log.i(TAG,"Caught exception: " + e.getMessage());
-				}
-			}    
-		}, 0, updateInterval, TimeUnit.MILLISECONDS);	  
+		adaptiveInterval.reset();
+		updating = true;
+		pausedForWatch = false;
+		scheduleUpdate(0);
 
 		Log.i(TAG,"Starting updater: done");	
 	}
 
+	// (re)schedule the next update, the interval adapts to the movement
+	private void scheduleUpdate(long delay) {
+		if ( !updating ) {
+			return;
+		}
+		eventLoop.removeCallbacks(updateRunnable);
+		eventLoop.postDelayed(updateRunnable, delay);
+		nextUpdateTime = eventLoop.now() + delay;
+	}
+
+	private final Runnable updateRunnable = new Runnable() {
+		public void run() {   
+			try {
+				// update sports data
+				updateMyTracks();				
+				updateSportsData();
+
+				if ( myapp ) {
+					updateMyApp();
+				} else {
+					updatePebbleSportsApp();
+				}
+			} catch ( Exception e ) {
+				Log.i(TAG,"Caught exception: " + e.getMessage());
+			}
+			lastUpdateTime = eventLoop.now();
+
+			// in push mode new track points trigger the updates, the timer
+			// only keeps the time fields running
+			long delay = adaptiveInterval.next(sportsData);
+			scheduleUpdate(pushUpdates ? maxUpdateInterval : delay);
+		}    
+	};
+
 
 	private String createTrackSummary(TripStatistics stats) {
-		String result = "";
-		SimpleDateFormat sdf = new SimpleDateFormat("MMM/dd/yyyy HH:mm");
-		
-		if ( metricUnits ) {
-			result = sdf.format(new Date(stats.getStartTime())) + ";" + 
-					String.format(Locale.US,"%.1f km",stats.getTotalDistance() * SportsData.M_TO_KM) + ";";
-					result = result + String.format(Locale.US,"%02d:%02d:%02d;",
-							stats.getTotalTime() / 3600000,
-							(stats.getTotalTime() % 3600000)/60000,
-							(stats.getTotalTime() % 60000)/1000);
-					result = result + String.format(Locale.US,"%.1f kmh;",stats.getAverageSpeed() * SportsData.MPS_TO_KMH);
-					result = result + String.format(Locale.US,"%.1f kmh;",stats.getAverageMovingSpeed() * SportsData.MPS_TO_KMH);
-					result = result + String.format(Locale.US,"%.1f kmh;",stats.getMaxSpeed() * SportsData.MPS_TO_KMH);
-					result = result + String.format(Locale.US,"%.1f m",stats.getTotalElevationGain());
-		} else {
-			result = sdf.format(new Date(stats.getStartTime())) + ";" + 
-					String.format(Locale.US,"%.1f miles",stats.getTotalDistance() * SportsData.M_TO_MILE) + ";";
-			result = result + String.format(Locale.US,"%02d:%02d:%02d",
-					Math.floor(stats.getTotalTime() / 3600000),
-					Math.floor((stats.getTotalTime() % 3600000)/60000),
-					Math.floor((stats.getTotalTime() % 60000)/1000));
-			result = result + String.format(Locale.US,"%.1f mph;",stats.getAverageSpeed() * SportsData.MPS_TO_MPH);
-			result = result + String.format(Locale.US,"%.1f mph;",stats.getAverageMovingSpeed() * SportsData.MPS_TO_MPH);
-			result = result + String.format(Locale.US,"%.1f mph;",stats.getMaxSpeed() * SportsData.MPS_TO_MPH);
-			result = result + String.format(Locale.US,"%.1f ft",stats.getTotalElevationGain() * SportsData.M_TO_FEET);			
-		} 
-		
+		String result = displayPlan.createTrackSummary(stats.getStartTime(), stats.getTotalDistance(), stats.getTotalTime(), stats.getMovingTime(),
+				stats.getMaxSpeed(), stats.getTotalElevationGain());
 		Log.i(TAG,"Track summary: " + result);
 		return result;
 	}
 
+	// units for the Pebble sports app
+	private static byte getSportsUnits(DisplayPlan plan) {
+		return plan.isMetric() ? (byte)Constants.SPORTS_UNITS_METRIC : (byte)Constants.SPORTS_UNITS_IMPERIAL;
+	}
+
+	private void sendTrackSummary(String summary) {
+		PebbleDictionary mdata = new PebbleDictionary();
+		if ( summary != null ) {
+			mdata.addString(MSG_TRACK_SUMMARY, summary);
+		} else {
+			mdata.addString(MSG_TRACK_SUMMARY, "No recorded tracks available");
+		}
+		pebbleSender.enqueue(alternativeAppUUID, mdata);
+	}
+
+	// dictionary header, and tuple header of key, type and length
+	private static final int DICTIONARY_HEADER_SIZE = 1;
+	private static final int TUPLE_HEADER_SIZE = 7;
+	public static final int DEFAULT_INBOX_SIZE = 124;
+
+	private void sendRecords() {
+		PebbleDictionary mdata = new PebbleDictionary();
+		mdata.addString(MSG_RECORDS, displayPlan.createRecordsSummary(sportsData));
+		Log.i(TAG,"Sending records");
+		pebbleSender.enqueue(alternativeAppUUID, mdata);
+	}
+
+	// the last completed lap, once per lap
+	private void sendLap() {
+		sentLaps = lapEngine.getCompletedLaps();
+		if (( !myapp )||( !watchConnection.isConnected() )) {
+			return;
+		}
+		PebbleDictionary mdata = new PebbleDictionary();
+		mdata.addString(MSG_LAP, displayPlan.createLapSummary(lapEngine.getLapNumber() - 1, lapEngine.getLastLapTime(), lapEngine.getLastLapDistance(), lapEngine.getLastLapAverageSpeed()));
+		Log.i(TAG,"Sending lap " + ( lapEngine.getLapNumber() - 1 ));
+		pebbleSender.enqueue(alternativeAppUUID, mdata);
+	}
+
+	// as many summaries as fit in the inbox of the watch, starting at the
+	// index-th most recent track
+	private void sendTrackSummaries(int index, int inboxSize) {
+		int budget = inboxSize - DICTIONARY_HEADER_SIZE - 2 * ( TUPLE_HEADER_SIZE + 2 ) - ( TUPLE_HEADER_SIZE + 1 );
+		List<String> batch = trackSummaryBrowser.batch(index, MAX_TRACK_SUMMARIES, budget, TUPLE_HEADER_SIZE);
+
+		PebbleDictionary mdata = new PebbleDictionary();
+		mdata.addInt16(MSG_TRACK_SUMMARY_INDEX, (short)index);
+		mdata.addInt16(MSG_TRACK_SUMMARY_TOTAL, (short)trackSummaryBrowser.getTrackCount());
+		mdata.addUint8(MSG_TRACK_SUMMARY_COUNT, (byte)batch.size());
+		for ( int i = 0; i < batch.size(); i++ ) {
+			mdata.addString(MSG_TRACK_SUMMARY_FIRST + i, batch.get(i));
+		}
+		Log.i(TAG,"Sending " + batch.size() + " track summaries from " + index);
+		pebbleSender.enqueue(alternativeAppUUID, mdata);
+	}
+
 	@Override
-	public int onStartCommand(Intent intent, int flags, int startId) {
-		
+	public int onStartCommand(final Intent intent, int flags, int startId) {
+		boolean queued = eventLoop.post(new Runnable() {
+			public void run() {
+				handleIntent(intent);
+			}
+		});
+		if ( !queued ) {
+			Log.i(TAG,"Command queue full, dropping command");
+		}
+		return START_STICKY;
+	};
+
+	// commands from the receiver while the service is running
+	private final CommandChannel.Sink commandSink = new CommandChannel.Sink() {
+		public boolean offer(final int cmd, final int arg1, final int arg2, final long time) {
+			boolean queued = eventLoop.post(new Runnable() {
+				public void run() {
+					handleCommand(cmd, arg1, arg2, time);
+				}
+			});
+			if ( !queued ) {
+				Log.i(TAG,"Command queue full, dropping command");
+			}
+			return queued;
+		}
+	};
+
+	// runs on the event loop
+	private void handleIntent(Intent intent) {
+		long now = eventLoop.now();
+		if ( intent == null ) {
+			handleCommand(myapp ? CMD_UNKNOWN : Constants.SPORTS_STATE_INIT, CommandChannel.ARG_NONE, CommandChannel.ARG_NONE, now);
+		} else {
+			handleCommand(intent.getIntExtra("CMD", myapp ? CMD_UNKNOWN : Constants.SPORTS_STATE_INIT),
+					intent.getIntExtra("ARG1", CommandChannel.ARG_NONE),
+					intent.getIntExtra("ARG2", CommandChannel.ARG_NONE),
+					intent.getLongExtra("TIME", now));
+		}
+	}
+
+	// runs on the event loop
+	private void handleCommand(int cmd, int arg1, int arg2, long time) {
 		if ( myapp ) {
 			Log.i(TAG,"Custom App");
-			int cmd = intent != null ? intent.getIntExtra("CMD", CMD_UNKNOWN) : CMD_UNKNOWN;
 			try {
 
 
 				switch ( cmd ) {
 				case CMD_TRACK_SUMMARY:
 				Log.i(TAG,"Received CMD_TRACK_SUMMARY");
-				if ( PebbleKit.isWatchConnected(this)) {
-					PebbleDictionary mdata = new PebbleDictionary();
-					int numTracks = myTracksProviderUtils.getAllTracks().size();
-					if ( numTracks > 0 ) {
-						tracknum = numTracks - 1;
-						Track track = myTracksProviderUtils.getAllTracks().get(tracknum);
-						TripStatistics stats = track.getTripStatistics();
-						
-						mdata.addString(MSG_TRACK_SUMMARY, createTrackSummary(stats));
- 						
-						tracknum--;								
-					} else {
-						tracknum = 0;
-						mdata.addString(MSG_TRACK_SUMMARY, "No recorded tracks available");
-					}
-					
-					PebbleKit.sendDataToPebble(getApplicationContext(), alternativeAppUUID, mdata);
+				if ( watchConnection.isConnected()) {
+					sendTrackSummary(trackSummaryBrowser.first());
 				}
 				break; 
 				case CMD_NEXT_TRACK_SUMMARY:
 					Log.i(TAG,"Received CMD_NEXT_TRACK");
-					Log.i(TAG,"test 1");
-					int numTracks = myTracksProviderUtils.getAllTracks().size();
-					if ( PebbleKit.isWatchConnected(this)) {
-						tracknum--;								
-						PebbleDictionary mdata = new PebbleDictionary();
-						if ( numTracks > 0 ) {
-							if ( tracknum < 0 ) tracknum = numTracks - 1;
-							Track track = myTracksProviderUtils.getAllTracks().get(tracknum);
-							TripStatistics stats = track.getTripStatistics();
-							
-							mdata.addString(MSG_TRACK_SUMMARY, createTrackSummary(stats));
-
-	 							
-						} else {
-							tracknum = 0;
-							mdata.addString(MSG_TRACK_SUMMARY, "No recorded tracks available");
+					if ( watchConnection.isConnected()) {
+						sendTrackSummary(trackSummaryBrowser.next());
+					}
+					break;
+				case CMD_TRACK_SUMMARIES:
+					Log.i(TAG,"Received CMD_TRACK_SUMMARIES");
+					if ( watchConnection.isConnected()) {
+						sendTrackSummaries(Math.max(arg1, 0), arg2 != CommandChannel.ARG_NONE ? arg2 : DEFAULT_INBOX_SIZE);
+					}
+					break;
+				case CMD_RECORDS:
+					Log.i(TAG,"Received CMD_RECORDS");
+					if ( watchConnection.isConnected()) {
+						sendRecords();
+					}
+					break;
+				case CMD_LAP:
+					Log.i(TAG,"Received CMD_LAP");
+					if ( currentState == STATE_MYTRACKS_RECORDING ) {
+						// the updates may have backed off, read the points
+						// up to the button press first
+						trackStateCache.update();
+						if ( lapEngine.lap() ) {
+							sendLap();
 						}
-						
-						PebbleKit.sendDataToPebble(getApplicationContext(), alternativeAppUUID, mdata);
 					}
 					break;
+				case CMD_SET_WIRE_FORMAT:
+				{
+					int requested = arg1;
+					wireFormat = requested >= WIRE_FORMAT_BINARY ? WIRE_FORMAT_BINARY : WIRE_FORMAT_STRING;
+					Log.i(TAG,"Received CMD_SET_WIRE_FORMAT " + requested + ", using " + wireFormat);
+					pebbleSender.invalidate(alternativeAppUUID);
+					pebbleSender.addUint8(alternativeAppUUID, MSG_WIRE_FORMAT, (byte)wireFormat);
+					pebbleSender.send(alternativeAppUUID);
+					resendConfig();
+				}
+				break;
+				case CMD_CONFIG_VERSION:
+				{
+					int version = arg1;
+					Log.i(TAG,"Received CMD_CONFIG_VERSION " + version);
+					if ( version == configVersion ) {
+						configConfirmed = true;
+					} else {
+						resendConfig();
+					}
+				}
+				break;
+				case CMD_SET_PAGE:
+				{
+					int page = arg1;
+					Log.i(TAG,"Received CMD_SET_PAGE " + page);
+					selectPage(page);
+					resendConfig();
+					if ( updating ) {
+						scheduleUpdate(0);
+					}
+				}
+				break;
 				case CMD_GET_STATUS:
-					tracknum = -1;
+					resendConfig();
 					startUpdater();
 					Log.i(TAG,"Received CMD_GET_STATUS");
+					// the watch app (re)started, it needs all values
+					pebbleSender.invalidate(alternativeAppUUID);
 					currentCommand = CMD_GET_STATUS;
 					break;
 				case CMD_START_TRACK:
-					tracknum = -1;
 
 					startUpdater();
 					Log.i(TAG,"Received CMD_START_TRACK");
-					desiredState = STATE_MYTRACKS_RECORDING;
-					currentCommand = CMD_START_TRACK;
+					queueTrackCommand(cmd, time);
 					break;
 				case CMD_STOP_TRACK:
-					tracknum = -1;
 					startUpdater();
 					Log.i(TAG,"Received CMD_STOP_TRACK");
-					desiredState = STATE_MYTRACKS_NOTHING;
-					currentCommand = CMD_STOP_TRACK;
+					queueTrackCommand(cmd, time);
 					break;
 				case CMD_PAUSE_TRACK:
-					tracknum = -1;
 
 					startUpdater();
 					Log.i(TAG,"Received CMD_PAUSE_TRACK");
-					desiredState = STATE_MYTRACKS_PAUSED;
-					currentCommand = CMD_PAUSE_TRACK;
+					queueTrackCommand(cmd, time);
 					break;
 				case CMD_RESUME_TRACK:
-					tracknum = -1;
 					Log.i(TAG,"Received CMD_RESUME_TRACK");
 					startUpdater();
-					desiredState = STATE_MYTRACKS_RECORDING;
-					currentCommand = CMD_RESUME_TRACK;
+					queueTrackCommand(cmd, time);
 					break;
 				case EVENT_MYTRACKS_STARTED:
-					tracknum = -1;
+					myTracksConnection.setState((byte)STATE_MYTRACKS_RECORDING);
+					trackStateCache.invalidate();
+					trackSummaryBrowser.invalidate();
 					startUpdater();
 					desiredState = STATE_MYTRACKS_RECORDING;
 					currentCommand = CMD_UNKNOWN;
 					break;
 				case EVENT_MYTRACKS_STOPPED:
-					tracknum = -1;
+					myTracksConnection.setState((byte)STATE_MYTRACKS_NOTHING);
+					trackStateCache.invalidate();
+					trackSummaryBrowser.invalidate();
+					indexFinishedTrack();
 					startUpdater();
 					desiredState = STATE_MYTRACKS_NOTHING;
 					currentCommand = CMD_UNKNOWN;
@@ -407,17 +837,15 @@ public class PebbleSportsService extends Service implements OnSharedPreferenceCh
 			}
 
 
-			if ( PebbleKit.isWatchConnected(this)) {
-				PebbleDictionary mdata = new PebbleDictionary();
-				mdata.addInt8(MSG_SET_CURRENTSTATE, currentState);
-				mdata.addInt8(MSG_SET_DESIREDSTATE, desiredState);
-				PebbleKit.sendDataToPebble(getApplicationContext(), alternativeAppUUID, mdata);
+			if ( watchConnection.isConnected()) {
+				pebbleSender.addInt8(alternativeAppUUID, MSG_SET_CURRENTSTATE, currentState);
+				pebbleSender.addInt8(alternativeAppUUID, MSG_SET_DESIREDSTATE, desiredState);
+				pebbleSender.send(alternativeAppUUID);
 			} else {
-				stopUpdater();
+				pauseUpdaterForWatch();
 			}
 		} else {
 			Log.i(TAG,"Pebble App");
-			int cmd = intent != null ? intent.getIntExtra("CMD", Constants.SPORTS_STATE_INIT) : Constants.SPORTS_STATE_INIT;
 
 			
 			startUpdater();
@@ -428,80 +856,102 @@ public class PebbleSportsService extends Service implements OnSharedPreferenceCh
 				break;
 			case Constants.SPORTS_STATE_PAUSED:
 				Log.i(TAG,"SPORTS_STATE_PAUSED");
-				desiredState = STATE_MYTRACKS_RECORDING;
-				currentCommand = CMD_RESUME_TRACK;
+				queueTrackCommand(CMD_RESUME_TRACK, time);
 				break;
 			case Constants.SPORTS_STATE_RUNNING:
 				Log.i(TAG,"SPORTS_STATE_RUNNING");
-				desiredState = STATE_MYTRACKS_PAUSED;
-				currentCommand = CMD_PAUSE_TRACK;
+				queueTrackCommand(CMD_PAUSE_TRACK, time);
 				break;
 			case Constants.SPORTS_STATE_END:
 				Log.i(TAG,"SPORTS_STATE_END");
 				break;
 			case EVENT_MYTRACKS_STARTED:
 				Log.i(TAG,"EVENT MYtracks started");
+				myTracksConnection.setState((byte)STATE_MYTRACKS_RECORDING);
+				trackStateCache.invalidate();
+				trackSummaryBrowser.invalidate();
 				PebbleKit.startAppOnPebble(getApplicationContext(), appUUID);
+				pebbleSender.invalidate(appUUID);
 				break;
 			case EVENT_MYTRACKS_STOPPED:
 				Log.i(TAG,"EVENT Mytrackes stopped");
+				myTracksConnection.setState((byte)STATE_MYTRACKS_NOTHING);
+				trackStateCache.invalidate();
+				trackSummaryBrowser.invalidate();
+				indexFinishedTrack();
 				PebbleKit.closeAppOnPebble(getApplicationContext(), appUUID);
 				break;
 			}						
 		}
+	}
 
-
-		return START_STICKY;
-	};
-
-	private void startMyTracksService() {
-		//		Log.i(TAG,"Start mytracks service");
-		if ( myTracksService != null ) {
-			//			Log.i(TAG,"Service already bound");
-			return;
-		}
-		// for the MyTracks service
-		Intent intent = new Intent();
-		ComponentName componentName = new ComponentName(getString(R.string.mytracks_service_package), getString(R.string.mytracks_service_class));
-		intent.setComponent(componentName);
-		startService(intent);
-		bindService(intent, serviceConnection, 0);
-
-
-
+	// track commands are coalesced for a short while and then applied to
+	// MyTracks right away instead of on the next update
+	private void queueTrackCommand(int cmd, long time) {
+		commandReceiveTime = time;
+		long release = commandCoalescer.offer(cmd, time);
+		eventLoop.removeCallbacks(commandRunnable);
+		eventLoop.postDelayed(commandRunnable, release - eventLoop.now());
 	}
 
-	private void stopMyTracksService() {
-		Log.i(TAG,"Stop mytracks service");
-		if ( myTracksService != null ) {
-			Log.i(TAG,"unbinding service");
-			unbindService(serviceConnection);
-			myTracksService = null;
-		}
+	private final Runnable commandRunnable = new Runnable() {
+		public void run() {
+			long now = eventLoop.now();
+			List<Integer> commands = commandCoalescer.poll(now);
+			if ( commands == null ) {
+				if ( !commandCoalescer.isEmpty() ) {
+					eventLoop.postDelayed(commandRunnable, commandCoalescer.getReleaseTime() - now);
+				}
+				return;
+			}
+			for ( int cmd : commands ) {
+				Log.i(TAG,"Applying command " + cmd);
+				switch ( cmd ) {
+				case CMD_START_TRACK:
+				case CMD_RESUME_TRACK:
+					desiredState = STATE_MYTRACKS_RECORDING;
+					break;
+				case CMD_STOP_TRACK:
+					desiredState = STATE_MYTRACKS_NOTHING;
+					break;
+				case CMD_PAUSE_TRACK:
+					desiredState = STATE_MYTRACKS_PAUSED;
+					break;
+				}
+				currentCommand = (byte)cmd;
+				updateMyTracks();
+			}
 
-		Intent intent = new Intent();
-		ComponentName componentName = new ComponentName(getString(R.string.mytracks_service_package), getString(R.string.mytracks_service_class));
-		intent.setComponent(componentName);
-		stopService(intent);	    
-	}
+			if (( myapp )&&( watchConnection.isConnected() )) {
+				pebbleSender.addInt8(alternativeAppUUID, MSG_SET_CURRENTSTATE, currentState);
+				pebbleSender.addInt8(alternativeAppUUID, MSG_SET_DESIREDSTATE, desiredState);
+				pebbleSender.send(alternativeAppUUID);
+			}
+		}
+	};
 
 	private void initSportsData() {
 		Log.i(TAG,"init sports data");
 		try {
-			Location loc = myTracksProviderUtils.getLastValidTrackPoint();
-			TripStatistics statistics = myTracksProviderUtils.getLastTrack().getTripStatistics();
-			long trackid = myTracksProviderUtils.getLastTrack().getId();
-
-			sportsData.setFakeStartTime(statistics.getStartTime());
-
-			// initialise odometer
-			double odometer = 0;
-			Iterator<Track> trackIterator = myTracksProviderUtils.getAllTracks().iterator();
-			while ( trackIterator.hasNext()) {
-				odometer += trackIterator.next().getTripStatistics().getTotalDistance();
-				sportsData.setOdometer(odometer);
+			// the track state cache reads the last track once, the next
+			// update only reads the points added since
+			trackStateCache.update();
+			TripStatistics statistics = trackStateCache.getStatistics();
+			if ( statistics != null ) {
+				sportsData.setFakeStartTime(statistics.getStartTime());
 			}
-			
+
+			// odometer and records come from the track index, read on the
+			// index worker
+			indexWorker.execute(new Runnable() {
+				public void run() {
+					try {
+						postIndexedValues();
+					} catch ( Exception e ) {
+						Log.i(TAG,"Exception during track index read: " + e.getMessage());
+					}
+				}
+			});
 
 		} catch ( Exception e ) {
 			Log.i(TAG,"Exception during update data" + e.getMessage());
@@ -510,51 +960,90 @@ public class PebbleSportsService extends Service implements OnSharedPreferenceCh
 
 	}
 
+	// add the track that just finished to the track index
+	private void indexFinishedTrack() {
+		// the points of the finished track are kept even after a crash
+		if ( trackPointStore != null ) {
+			trackPointStore.flush();
+		}
+		indexWorker.execute(new Runnable() {
+			public void run() {
+				try {
+					Track track = myTracksProviderUtils.getLastTrack();
+					if ( track != null ) {
+						trackIndexer.addTrack(track.getId(), track.getTripStatistics());
+						postIndexedValues();
+					}
+				} catch ( Exception e ) {
+					Log.i(TAG,"Exception during track index update: " + e.getMessage());
+				}
+			}
+		});
+	}
+
+	// runs on the index worker, reads the odometer and the records and hands
+	// them to the event loop. The week and month follow the current time.
+	private void postIndexedValues() {
+		long now = System.currentTimeMillis();
+		final double odometer = trackIndexer.getOdometer();
+		final double weekDistance = trackIndex.getWeekDistance(now);
+		final double monthDistance = trackIndex.getMonthDistance(now);
+		final double longestDistance = trackIndex.getLongestDistance();
+		final double fastestAverageSpeed = trackIndex.getFastestAverageSpeed();
+		final double biggestElevationGain = trackIndex.getBiggestElevationGain();
+		// not dropped when the queue is full, they are not sent again
+		eventLoop.postDelayed(new Runnable() {
+			public void run() {
+				sportsData.setOdometer(odometer);
+				sportsData.setWeekDistance(weekDistance);
+				sportsData.setMonthDistance(monthDistance);
+				sportsData.setLongestDistance(longestDistance);
+				sportsData.setFastestAvgSpeed(fastestAverageSpeed);
+				sportsData.setBiggestElevationGain(biggestElevationGain);
+			}
+		}, 0);
+	}
+
 	private void updateMyTracks() {
 //		Log.i(TAG,"updateMyTracks started");		
 		try {
-			startMyTracksService();
-			if ( myTracksService != null ) {
+			// the connection binds and rebinds itself
+			if ( myTracksConnection.isConnected() ) {
 
-				if ( myTracksService.isRecording()) {
-					if ( myTracksService.isPaused() ) {
-						currentState = STATE_MYTRACKS_PAUSED;										
-						//						Log.i(TAG,"Current state = STATE_MYTRACKS_PAUSED");
-					} else {
-						//						Log.i(TAG,"Current state = STATE_MYTRACKS_RECORDING");
-						currentState = STATE_MYTRACKS_RECORDING;																
-					}
-				} else {
-					//					Log.i(TAG,"Current state = STATE_MYTRACKS_NOTHING");
-					currentState = STATE_MYTRACKS_NOTHING;
-				}
+				// cached, only refreshed over IPC when it is getting old
+				currentState = myTracksConnection.getState();
 
 
 				if ( currentCommand != CMD_UNKNOWN ) {
 					switch ( currentCommand ) {
 					case CMD_START_TRACK:
 						if ((myapp)&&(currentState == STATE_MYTRACKS_NOTHING )&&(desiredState == STATE_MYTRACKS_RECORDING)) {
-							myTracksService.startNewTrack();
+							myTracksConnection.startNewTrack();
+							recordCommandLatency();
 						}
 						break;
 					case CMD_STOP_TRACK:
 						if ((myapp)&&(currentState == STATE_MYTRACKS_RECORDING)&&(desiredState == STATE_MYTRACKS_NOTHING )) {
 							Log.i(TAG,"Stopping track recording");
-							myTracksService.endCurrentTrack();
+							myTracksConnection.endCurrentTrack();
+							recordCommandLatency();
 						}
 						if ((myapp)&&(currentState == STATE_MYTRACKS_PAUSED)&&(desiredState == STATE_MYTRACKS_NOTHING)) {
-							myTracksService.endCurrentTrack();
+							myTracksConnection.endCurrentTrack();
+							recordCommandLatency();
 							currentCommand = CMD_UNKNOWN;
 						}
 						break;
 					case CMD_PAUSE_TRACK:
 						if ((currentState == STATE_MYTRACKS_RECORDING)&&(desiredState == STATE_MYTRACKS_PAUSED )) {
-							myTracksService.pauseCurrentTrack();
+							myTracksConnection.pauseCurrentTrack();
+							recordCommandLatency();
 						}
 						break;
 					case CMD_RESUME_TRACK:
 						if ((currentState == STATE_MYTRACKS_PAUSED)&&(desiredState == STATE_MYTRACKS_RECORDING )) {
-							myTracksService.resumeCurrentTrack();
+							myTracksConnection.resumeCurrentTrack();
+							recordCommandLatency();
 						}
 						break;						
 					}
@@ -579,16 +1068,26 @@ public class PebbleSportsService extends Service implements OnSharedPreferenceCh
 
 	}
 
+	private void recordCommandLatency() {
+		long latency = eventLoop.now() - commandReceiveTime;
+		commandLatencyCount++;
+		commandLatencyTotal += latency;
+		commandLatencyMax = Math.max(commandLatencyMax, latency);
+		Log.i(TAG,"Command latency " + latency + " ms, avg " + ( commandLatencyTotal / commandLatencyCount ) + " ms, max " + commandLatencyMax + " ms");
+	}
+
 	private void updateSportsData() {
 //		Log.i(TAG,"updateSportsData");
 		try {
-			Location loc = myTracksProviderUtils.getLastValidTrackPoint();
-			TripStatistics statistics = myTracksProviderUtils.getLastTrack().getTripStatistics();
+			if ( !trackStateCache.update() ) {
+				return;
+			}
+			Location loc = trackStateCache.getLastLocation();
+			TripStatistics statistics = trackStateCache.getStatistics();
 
 //			Log.i(TAG,"updateSportsData 1");
 
-			long trackid = myTracksProviderUtils.getLastTrack().getId();
-			Location startLocation = myTracksProviderUtils.getFirstValidTrackPoint(trackid);
+			Location startLocation = trackStateCache.getStartLocation();
 
 			if ( System.currentTimeMillis() - loc.getTime() > GPS_FIX_TIMEOUT ) {
 				sportsData.setGpsStatus(false);
@@ -612,7 +1111,13 @@ public class PebbleSportsService extends Service implements OnSharedPreferenceCh
 			sportsData.setAltitude(loc.getAltitude());
 			sportsData.setStartTime(statistics.getStartTime());
 			sportsData.setStopTime(statistics.getStopTime());
-			sportsData.setMaxaltitude(statistics.getMaxElevation());
+			sportsData.setMinaltitude(statisticsEngine.getMinElevation());
+			sportsData.setMaxaltitude(statisticsEngine.getMaxElevation());
+			sportsData.setMingrade(statisticsEngine.getMinGrade());
+			sportsData.setMaxgrade(statisticsEngine.getMaxGrade());
+			sportsData.setGrade(statisticsEngine.getGrade());
+			sportsData.setVerticalspeed(statisticsEngine.getVerticalSpeed());
+			sportsData.setMaxspeed(statisticsEngine.getMaxSpeed());
 			sportsData.setAvgmovingspeed(statistics.getAverageMovingSpeed());
 			sportsData.setAvgspeed(statistics.getAverageSpeed());
 			sportsData.setTotalmovingtime(statistics.getMovingTime());
@@ -634,6 +1139,25 @@ public class PebbleSportsService extends Service implements OnSharedPreferenceCh
 			}
 			sportsData.setLocationTime(loc.getTime());
 
+			long now = System.currentTimeMillis();
+			sportsData.setAltspeed(speedEstimator.getSmoothedSpeed(now));
+			sportsData.setAltspeed2(speedEstimator.getWindowSpeed(now));
+			sportsData.setPace(sportsData.getAltspeed() > PACE_MIN_SPEED ? 1 / sportsData.getAltspeed() : 0);
+
+			sportsData.setLapTime(lapEngine.getLapTime(currentState == STATE_MYTRACKS_RECORDING ? now : loc.getTime()));
+			sportsData.setLapDistance(lapEngine.getLapDistance());
+			sportsData.setLapAvgspeed(lapEngine.getLapAverageSpeed());
+			if ( lapEngine.getCompletedLaps() != sentLaps ) {
+				sendLap();
+			}
+
+			// estimated arrival at the start at the average moving speed
+			if ( sportsData.getAvgmovingspeed() > PACE_MIN_SPEED ) {
+				sportsData.setEtaStart(now + (long)(sportsData.getDistanceToStart() * 1000 / sportsData.getAvgmovingspeed()));
+			} else {
+				sportsData.setEtaStart(0);
+			}
+
 
 
 		} catch ( Exception e ) {
@@ -645,164 +1169,79 @@ public class PebbleSportsService extends Service implements OnSharedPreferenceCh
 	private void updateMyApp() {
 		Log.i(TAG,"Display at pebble called");
 
-		String values = "";
-		String valueNames = "";
-		for(int i=0;(i<MyAppSettings.numFields);i++) {
-			ParameterType type = myAppSettings.getParameter(i);
-
-			if ( i > 0 ) {
-				values += ";";
-				valueNames += ";";
-			}
-
-			valueNames += type.getPebbleString();
+		if ( wireFormat == WIRE_FORMAT_BINARY ) {
+			displayPlan.encode(sportsData, binaryEncoder);
+		} else {
+			displayPlan.render(sportsData, fieldFormatter);
+		}
 
-			switch ( type ) {
-			case BEARING:
-				values += String.format("%.0f",sportsData.getBearing());
-				break;
-			case SPEED:
-				values += String.format("%.1f",sportsData.getSpeed() * (metricUnits ? SportsData.MPS_TO_KMH : SportsData.MPS_TO_MPH));
-				break;
-			case DISTANCE:
-			{
-				double distance = sportsData.getDistance() * (metricUnits ? SportsData.M_TO_KM : SportsData.M_TO_MILE);
-				if ( distance > 100 ) {
-					values += String.format("%.0f",distance);
-				} else {
-					values += String.format("%.1f",distance);
-				}
-			}
-			break;
-			case AVGSPEED:
-				values += String.format("%.1f",sportsData.getAvgspeed() * (metricUnits ? SportsData.MPS_TO_KMH : SportsData.MPS_TO_MPH));
-				break;
-			case AVGMOVINGSPEED:
-				values += String.format("%.1f",sportsData.getAvgmovingspeed() * (metricUnits ? SportsData.MPS_TO_KMH : SportsData.MPS_TO_MPH));
-				break;
-			case TOTALMOVINGTIME:
-			{
-				long time = sportsData.getTotalmovingtime() / 1000;
-				if ( time > 3599 ) {
-					values += String.format("%02d:%02d",time/3600,(time%3600)/60);
+		if ( watchConnection.isConnected()) {
+			// until the watch echoes the version; the delta sender only sends
+			// the names once unless the watch asks for them again
+			if ( !configConfirmed ) {
+				if ( wireFormat == WIRE_FORMAT_BINARY ) {
+					pebbleSender.addBytes(alternativeAppUUID, MSG_SET_FIELD_TYPES, fieldTypes);
 				} else {
-					values += String.format("%02d:%02d",time/60,time%60);                  
+					pebbleSender.addString(alternativeAppUUID, MSG_SET_NAMES, valueNames);
 				}
+				pebbleSender.addUint8(alternativeAppUUID, MSG_CONFIG_VERSION, (byte)configVersion);
+				pebbleSender.addUint8(alternativeAppUUID, MSG_SET_PAGE, (byte)visiblePage);
+				pebbleSender.addUint8(alternativeAppUUID, MSG_SET_PAGE_COUNT, (byte)pagePlans.length);
 			}
-			break;
-			case TOTALTIMEFROMSTART:
-			{
-				long time = sportsData.getTotalTimeFromStart() / 1000;
-				if ( time > 3599 ) {
-					values += String.format("%02d:%02d",time/3600,(time%3600)/60);
-				} else {
-					values += String.format("%02d:%02d",time/60,time%60);                  
-				}
-			}
-			break;
-			case TOTALTIME:
-			{
-				long time = sportsData.getTotaltime() / 1000;
-				if ( time > 3599 ) {
-					values += String.format("%02d:%02d",time/3600,(time%3600)/60);
-				} else {
-					values += String.format("%02d:%02d",time/60,time%60);                  
-				}
-			}
-			break;
-			case NOTHING:
-				values += "-";
-				break;
-			case DISTANCETOSTART:
-			{
-				double distanceToStart = sportsData.getDistanceToStart() * (metricUnits ? SportsData.M_TO_KM : SportsData.M_TO_MILE);
-				if ( distanceToStart > 100 ) {
-					values += String.format("%.0f",distanceToStart);    	  
-				} else { 
-					values += String.format("%.1f",distanceToStart);    	      	  
-				}
-			}	
-			break;
-			case ELEVATIONGAIN:
-			{	
-				double elevationgain = sportsData.getElevationGain() * (metricUnits ? 1 : SportsData.M_TO_FEET);
-				if ( elevationgain > 1000 ) {
-					values += String.format("%.2f", elevationgain / 1000);
-				} else {
-					values += String.format("%.0f", elevationgain);					
-				}
-			}
-			break;
-			default:
-				values += "0.0";
-				break;
-			}
-		}
-
-		if ( PebbleKit.isWatchConnected(this)) {
-			PebbleDictionary mdata = new PebbleDictionary();
 
-			if ( sendConfig > 0 ) {
-				//				Log.i(TAG,"Value Names: " + valueNames);
-				mdata.addString(MSG_SET_NAMES, valueNames);
-				sendConfig--;
+			if ( wireFormat == WIRE_FORMAT_BINARY ) {
+				pebbleSender.addBytes(alternativeAppUUID, MSG_SET_BINARY_VALUES, binaryEncoder);
+			} else {
+				pebbleSender.addString(alternativeAppUUID, MSG_SET_VALUES, fieldFormatter);
 			}
-
-			
-			
-			mdata.addString(MSG_SET_VALUES, values);
-			mdata.addInt8(MSG_SET_CURRENTSTATE, currentState);
-			mdata.addInt8(MSG_SET_DESIREDSTATE, desiredState);
-			mdata.addInt8(MSG_SET_GPSSTATUS,sportsData.getGpsStatus() ? (byte)1 : (byte)0);
-			PebbleKit.sendDataToPebble(getApplicationContext(), alternativeAppUUID, mdata);
+			pebbleSender.addInt8(alternativeAppUUID, MSG_SET_CURRENTSTATE, currentState);
+			pebbleSender.addInt8(alternativeAppUUID, MSG_SET_DESIREDSTATE, desiredState);
+			pebbleSender.addInt8(alternativeAppUUID, MSG_SET_GPSSTATUS,sportsData.getGpsStatus() ? (byte)1 : (byte)0);
+			pebbleSender.send(alternativeAppUUID);
 		} else {
-			stopUpdater();
+			pauseUpdaterForWatch();
 		}
 	}
 
 
+
 	private void updatePebbleSportsApp() {
 //			Log.i(TAG,"UpdatePebbleSportsApp");
-		PebbleDictionary data = new PebbleDictionary();
-
+		if ( !watchConnection.isConnected()) {
+			pauseUpdaterForWatch();
+			return;
+		}
 
 		long time = sportsData.getTotaltime()/ 1000;
 
+		fieldFormatter.reset();
 		if ( time > 3599 ) {
-			data.addString(Constants.SPORTS_TIME_KEY,String.format("%02d:%02d:%02d",time/3600,(time%3600)/60,time%60));
-		} else {
-			data.addString(Constants.SPORTS_TIME_KEY,String.format("%02d:%02d",time/60,time%60));                  
-		}
-
-		double speed = sportsData.getSpeed();
-		double totalDistance = sportsData.getDistance() * SportsData.M_TO_KM;
-		if ( metricUnits ) {
-			speed = speed * SportsData.MPS_TO_KMH;
-			data.addUint8(Constants.SPORTS_UNITS_KEY, (byte)Constants.SPORTS_UNITS_METRIC);
-			data.addUint8(Constants.SPORTS_LABEL_KEY, (byte)Constants.SPORTS_DATA_SPEED);
+			fieldFormatter.appendTwoDigits(time/3600).append(':').appendTwoDigits((time%3600)/60).append(':').appendTwoDigits(time%60);
 		} else {
-			speed = speed * SportsData.MPS_TO_MPH;
-			totalDistance = totalDistance * SportsData.KM_TO_MILES;
-			data.addUint8(Constants.SPORTS_UNITS_KEY, (byte)Constants.SPORTS_UNITS_IMPERIAL);        
-			data.addUint8(Constants.SPORTS_LABEL_KEY, (byte)Constants.SPORTS_DATA_SPEED);
+			fieldFormatter.appendTwoDigits(time/60).append(':').appendTwoDigits(time%60);
 		}
+		pebbleSender.addString(appUUID, Constants.SPORTS_TIME_KEY, fieldFormatter);
 
+		double speed = sportsData.getSpeed() * displayPlan.getSpeedFactor();
+		double totalDistance = displayPlan.getSportsDistance(sportsData);
+		pebbleSender.addUint8(appUUID, Constants.SPORTS_UNITS_KEY, getSportsUnits(displayPlan));
+		pebbleSender.addUint8(appUUID, Constants.SPORTS_LABEL_KEY, (byte)Constants.SPORTS_DATA_SPEED);
 
+		fieldFormatter.reset();
 		if ( totalDistance > 100 ) {
-			data.addString(Constants.SPORTS_DISTANCE_KEY, String.format(Locale.US,"%.0f", totalDistance));
+			fieldFormatter.appendFixed(totalDistance, 0);
 		} else if ( totalDistance > 10 ) {
-			data.addString(Constants.SPORTS_DISTANCE_KEY, String.format(Locale.US,"%.1f", totalDistance));
+			fieldFormatter.appendFixed(totalDistance, 1);
 		} else {
-			data.addString(Constants.SPORTS_DISTANCE_KEY, String.format(Locale.US,"%.2f", totalDistance));
+			fieldFormatter.appendFixed(totalDistance, 2);
 		}
-		data.addString(Constants.SPORTS_DATA_KEY, String.format(Locale.US,"%.1f",speed));
+		pebbleSender.addString(appUUID, Constants.SPORTS_DISTANCE_KEY, fieldFormatter);
 
+		fieldFormatter.reset();
+		fieldFormatter.appendFixed(speed, 1);
+		pebbleSender.addString(appUUID, Constants.SPORTS_DATA_KEY, fieldFormatter);
 
-		if ( PebbleKit.isWatchConnected(this)) {
-			PebbleKit.sendDataToPebble(getApplicationContext(), appUUID, data);
-		} else {
-			stopUpdater();
-		}
+		pebbleSender.send(appUUID);
 		//		Log.i(TAG,"UpdatePebbleSportsApp: done");
 
 	}
@@ -0,0 +1,76 @@
+package org.meulenhoff.pebblemytracks;
+
+// streaming speed estimate from the recent track points, updated in O(1)
+// per point. Two estimates are kept: an exponentially weighted average of
+// the point speeds and the average speed over the last WINDOW points.
+public class SpeedEstimator {
+	public static final int WINDOW = 8;
+	public static final double TIME_CONSTANT = 5000; // ms
+	public static final long TIMEOUT = 10000; // ms without points before the speed drops to 0
+
+	// ring buffer of the recent points
+	private long[] times = new long[WINDOW];
+	private double[] distances = new double[WINDOW];
+	private int head;
+	private int size;
+
+	private double smoothedSpeed;
+
+	public SpeedEstimator() {
+		reset();
+	}
+
+	public void reset() {
+		head = 0;
+		size = 0;
+		smoothedSpeed = 0;
+	}
+
+	// add a point at time (ms) and distance along the track (m). speed is
+	// the speed reported by the GPS, or a negative value when unknown.
+	public void add(long time, double distance, double speed) {
+		if ( size > 0 ) {
+			int last = ( head + WINDOW - 1 ) % WINDOW;
+			long dt = time - times[last];
+			if ( dt <= 0 ) {
+				return;
+			}
+			if ( speed < 0 ) {
+				speed = ( distance - distances[last] ) * 1000 / dt;
+			}
+			double alpha = 1 - Math.exp(-dt / TIME_CONSTANT);
+			smoothedSpeed += alpha * ( speed - smoothedSpeed );
+		} else {
+			smoothedSpeed = Math.max(0, speed);
+		}
+
+		times[head] = time;
+		distances[head] = distance;
+		head = ( head + 1 ) % WINDOW;
+		if ( size < WINDOW ) {
+			size++;
+		}
+	}
+
+	// exponentially weighted speed in m/s at time now (ms)
+	public double getSmoothedSpeed(long now) {
+		if (( size == 0 )||( now - getLastTime() > TIMEOUT )) {
+			return 0;
+		}
+		return smoothedSpeed;
+	}
+
+	// average speed over the points in the buffer in m/s at time now (ms)
+	public double getWindowSpeed(long now) {
+		if (( size < 2 )||( now - getLastTime() > TIMEOUT )) {
+			return 0;
+		}
+		int last = ( head + WINDOW - 1 ) % WINDOW;
+		int first = ( head + WINDOW - size ) % WINDOW;
+		return ( distances[last] - distances[first] ) * 1000 / ( times[last] - times[first] );
+	}
+
+	private long getLastTime() {
+		return times[( head + WINDOW - 1 ) % WINDOW];
+	}
+}
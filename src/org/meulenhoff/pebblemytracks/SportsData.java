@@ -37,6 +37,7 @@ public class SportsData {
 	private long totalTimeFromStart;
 	private double altspeed;
 	private double altspeed2;
+	private double pace; // current pace in s/m, 0 when not moving
 	private double speed; // current speed in m/s
 	private double distance; // trip distance in m
 	private long totaltime; // total trip time in ms
@@ -47,6 +48,12 @@ public class SportsData {
 	private double altitude; // current altitude
 	private double bearing; // bearing
 	private double maxaltitude; // max trip altitude
+	private double minaltitude; // min trip altitude
+	private double maxgrade; // max trip grade in %
+	private double mingrade; // min trip grade in %
+	private double grade; // current grade in %
+	private double verticalspeed; // current vertical speed in m/h
+	private long etaStart; // estimated arrival time at the start, 0 when unknown
 	private double totalelevation; // total trip elevation
 	
 	
@@ -87,6 +94,14 @@ public class SportsData {
 	public void setAltspeed(double altspeed) {
 		this.altspeed = altspeed;
 	}
+
+	public double getPace() {
+		return pace;
+	}
+
+	public void setPace(double pace) {
+		this.pace = pace;
+	}
 	private double odometer;
 	
 	public double getOdometer() {
@@ -95,6 +110,66 @@ public class SportsData {
 	public void setOdometer(double odometer) {
 		this.odometer = odometer;
 	}
+	// aggregates over the finished tracks, from the records index
+	private double weekDistance;
+	private double monthDistance;
+	private double longestDistance;
+	private double fastestAvgSpeed;
+	private double biggestElevationGain;
+
+	public double getWeekDistance() {
+		return weekDistance;
+	}
+	public void setWeekDistance(double weekDistance) {
+		this.weekDistance = weekDistance;
+	}
+	public double getMonthDistance() {
+		return monthDistance;
+	}
+	public void setMonthDistance(double monthDistance) {
+		this.monthDistance = monthDistance;
+	}
+	public double getLongestDistance() {
+		return longestDistance;
+	}
+	public void setLongestDistance(double longestDistance) {
+		this.longestDistance = longestDistance;
+	}
+	public double getFastestAvgSpeed() {
+		return fastestAvgSpeed;
+	}
+	public void setFastestAvgSpeed(double fastestAvgSpeed) {
+		this.fastestAvgSpeed = fastestAvgSpeed;
+	}
+	public double getBiggestElevationGain() {
+		return biggestElevationGain;
+	}
+	public void setBiggestElevationGain(double biggestElevationGain) {
+		this.biggestElevationGain = biggestElevationGain;
+	}
+	// running lap, from the lap engine
+	private long lapTime;
+	private double lapDistance;
+	private double lapAvgspeed;
+
+	public long getLapTime() {
+		return lapTime;
+	}
+	public void setLapTime(long lapTime) {
+		this.lapTime = lapTime;
+	}
+	public double getLapDistance() {
+		return lapDistance;
+	}
+	public void setLapDistance(double lapDistance) {
+		this.lapDistance = lapDistance;
+	}
+	public double getLapAvgspeed() {
+		return lapAvgspeed;
+	}
+	public void setLapAvgspeed(double lapAvgspeed) {
+		this.lapAvgspeed = lapAvgspeed;
+	}
 	public long getStartTime() {
 		return startTime;
 	}
@@ -167,6 +242,42 @@ public class SportsData {
 	public void setMaxaltitude(double maxaltitude) {
 		this.maxaltitude = maxaltitude;
 	}
+	public double getMinaltitude() {
+		return minaltitude;
+	}
+	public void setMinaltitude(double minaltitude) {
+		this.minaltitude = minaltitude;
+	}
+	public double getMaxgrade() {
+		return maxgrade;
+	}
+	public void setMaxgrade(double maxgrade) {
+		this.maxgrade = maxgrade;
+	}
+	public double getMingrade() {
+		return mingrade;
+	}
+	public void setMingrade(double mingrade) {
+		this.mingrade = mingrade;
+	}
+	public double getGrade() {
+		return grade;
+	}
+	public void setGrade(double grade) {
+		this.grade = grade;
+	}
+	public double getVerticalspeed() {
+		return verticalspeed;
+	}
+	public void setVerticalspeed(double verticalspeed) {
+		this.verticalspeed = verticalspeed;
+	}
+	public long getEtaStart() {
+		return etaStart;
+	}
+	public void setEtaStart(long etaStart) {
+		this.etaStart = etaStart;
+	}
 	public double getTotalelevation() {
 		return totalelevation;
 	}
@@ -0,0 +1,237 @@
+package org.meulenhoff.pebblemytracks;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+// the finished tracks of MyTracks in a small database: one row per track with
+// the key numbers and the rendered metric and imperial summaries, and one
+// state row with the highest indexed track id, the number of indexed tracks
+// and the odometer total. The week and month distances and the records are
+// indexed queries, so opening the index and every query cost O(log tracks)
+// and nothing is loaded before it is asked for. Written by TrackIndexer on
+// a single worker, the summaries are also read on other threads.
+public class TrackIndex extends SQLiteOpenHelper {
+	private static final String DATABASE_NAME = "trackindex.db";
+	private static final int DATABASE_VERSION = 1;
+
+	// shorter tracks do not count for the fastest average speed
+	public static final double MIN_RECORD_DISTANCE = 1000;
+
+	// the SharedPreferences the index used before, cleared once
+	private static final String[] OLD_PREFERENCES = { "odometer", "records", "summaries" };
+
+	private Context context;
+	private SQLiteStatement insertTrack;
+	private SQLiteStatement updateState;
+
+	public TrackIndex(Context context) {
+		super(context, DATABASE_NAME, null, DATABASE_VERSION);
+		this.context = context;
+	}
+
+	@Override
+	public void onCreate(SQLiteDatabase db) {
+		db.execSQL("CREATE TABLE tracks (_id INTEGER PRIMARY KEY, start_time INTEGER, distance REAL, total_time INTEGER, moving_time INTEGER, " +
+				"avg_speed REAL, max_speed REAL, elevation_gain REAL, metric TEXT, imperial TEXT)");
+		db.execSQL("CREATE INDEX tracks_start_time ON tracks (start_time)");
+		db.execSQL("CREATE INDEX tracks_distance ON tracks (distance)");
+		db.execSQL("CREATE INDEX tracks_avg_speed ON tracks (avg_speed)");
+		db.execSQL("CREATE INDEX tracks_elevation_gain ON tracks (elevation_gain)");
+		db.execSQL("CREATE TABLE state (mark INTEGER, count INTEGER, odometer REAL)");
+		db.execSQL("INSERT INTO state VALUES (-1, 0, 0)");
+		for ( String name : OLD_PREFERENCES ) {
+			context.getSharedPreferences(name, Context.MODE_PRIVATE).edit().clear().commit();
+		}
+	}
+
+	@Override
+	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		db.execSQL("DROP TABLE IF EXISTS tracks");
+		db.execSQL("DROP TABLE IF EXISTS state");
+		onCreate(db);
+	}
+
+	// highest indexed track id, -1 when the index is empty
+	public long getMark() {
+		return queryLong("SELECT mark FROM state", null);
+	}
+
+	public long getCount() {
+		return queryLong("SELECT count FROM state", null);
+	}
+
+	// distance of all indexed tracks in m
+	public double getOdometer() {
+		return queryDouble("SELECT odometer FROM state", null);
+	}
+
+	// rendered summary, or null when the track is not in the index
+	public String getSummary(long trackId, boolean metric) {
+		Cursor cursor = getReadableDatabase().rawQuery("SELECT " + ( metric ? "metric" : "imperial" ) + " FROM tracks WHERE _id = ?",
+				new String[] { Long.toString(trackId) });
+		try {
+			return cursor.moveToFirst() ? cursor.getString(0) : null;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	public boolean contains(long trackId) {
+		return !Double.isNaN(getDistance(trackId));
+	}
+
+	// ids of all indexed tracks, only read when the index is rescanned
+	public List<Long> getTrackIds() {
+		List<Long> trackIds = new ArrayList<Long>();
+		Cursor cursor = getReadableDatabase().rawQuery("SELECT _id FROM tracks", null);
+		try {
+			while ( cursor.moveToNext() ) {
+				trackIds.add(cursor.getLong(0));
+			}
+		} finally {
+			cursor.close();
+		}
+		return trackIds;
+	}
+
+	// distance of the tracks started in the week (from Monday) of time
+	public double getWeekDistance(long time) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(time);
+		startOfDay(calendar);
+		// days since Monday
+		calendar.add(Calendar.DAY_OF_MONTH, -(( calendar.get(Calendar.DAY_OF_WEEK) + 5 ) % 7));
+		long start = calendar.getTimeInMillis();
+		calendar.add(Calendar.DAY_OF_MONTH, 7);
+		return getDistance(start, calendar.getTimeInMillis());
+	}
+
+	// distance of the tracks started in the calendar month of time
+	public double getMonthDistance(long time) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(time);
+		startOfDay(calendar);
+		calendar.set(Calendar.DAY_OF_MONTH, 1);
+		long start = calendar.getTimeInMillis();
+		calendar.add(Calendar.MONTH, 1);
+		return getDistance(start, calendar.getTimeInMillis());
+	}
+
+	public double getLongestDistance() {
+		return queryDouble("SELECT MAX(distance) FROM tracks", null);
+	}
+
+	public double getFastestAverageSpeed() {
+		return queryDouble("SELECT MAX(avg_speed) FROM tracks WHERE distance >= " + MIN_RECORD_DISTANCE, null);
+	}
+
+	public double getBiggestElevationGain() {
+		return queryDouble("SELECT MAX(elevation_gain) FROM tracks", null);
+	}
+
+	// writes for TrackIndexer, inside a transaction of the writable database
+
+	SQLiteDatabase beginWrite() {
+		SQLiteDatabase db = getWritableDatabase();
+		db.beginTransaction();
+		return db;
+	}
+
+	void endWrite(SQLiteDatabase db, boolean successful) {
+		if ( successful ) {
+			db.setTransactionSuccessful();
+		}
+		db.endTransaction();
+	}
+
+	// add or replace a finished track and update the state row
+	void putTrack(SQLiteDatabase db, long trackId, long startTime, double distance, long totalTime, long movingTime,
+			double averageSpeed, double maxSpeed, double elevationGain, String metric, String imperial) {
+		double previousDistance = getDistance(trackId);
+		boolean replaced = !Double.isNaN(previousDistance);
+		if ( insertTrack == null ) {
+			insertTrack = db.compileStatement("INSERT OR REPLACE INTO tracks VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+			updateState = db.compileStatement("UPDATE state SET mark = MAX(mark, ?), count = count + ?, odometer = odometer + ?");
+		}
+		insertTrack.bindLong(1, trackId);
+		insertTrack.bindLong(2, startTime);
+		insertTrack.bindDouble(3, distance);
+		insertTrack.bindLong(4, totalTime);
+		insertTrack.bindLong(5, movingTime);
+		insertTrack.bindDouble(6, averageSpeed);
+		insertTrack.bindDouble(7, maxSpeed);
+		insertTrack.bindDouble(8, elevationGain);
+		insertTrack.bindString(9, metric);
+		insertTrack.bindString(10, imperial);
+		insertTrack.execute();
+		updateState.bindLong(1, trackId);
+		updateState.bindLong(2, replaced ? 0 : 1);
+		updateState.bindDouble(3, replaced ? distance - previousDistance : distance);
+		updateState.execute();
+	}
+
+	// drop a track that has been deleted in MyTracks
+	void removeTrack(SQLiteDatabase db, long trackId) {
+		double distance = getDistance(trackId);
+		if ( Double.isNaN(distance) ) {
+			return;
+		}
+		db.delete("tracks", "_id = ?", new String[] { Long.toString(trackId) });
+		db.execSQL("UPDATE state SET count = count - 1, odometer = odometer - ?", new Object[] { distance });
+	}
+
+	@Override
+	public synchronized void close() {
+		insertTrack = null;
+		updateState = null;
+		super.close();
+	}
+
+	// distance of an indexed track, NaN when it is not in the index
+	private double getDistance(long trackId) {
+		Cursor cursor = getReadableDatabase().rawQuery("SELECT distance FROM tracks WHERE _id = ?", new String[] { Long.toString(trackId) });
+		try {
+			return cursor.moveToFirst() ? cursor.getDouble(0) : Double.NaN;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	private double getDistance(long start, long end) {
+		return queryDouble("SELECT SUM(distance) FROM tracks WHERE start_time >= ? AND start_time < ?",
+				new String[] { Long.toString(start), Long.toString(end) });
+	}
+
+	private static void startOfDay(Calendar calendar) {
+		calendar.set(Calendar.HOUR_OF_DAY, 0);
+		calendar.set(Calendar.MINUTE, 0);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+	}
+
+	// first column of the first row, 0 when there is no row or it is NULL
+	private double queryDouble(String sql, String[] args) {
+		Cursor cursor = getReadableDatabase().rawQuery(sql, args);
+		try {
+			return (( cursor.moveToFirst() )&&( !cursor.isNull(0) )) ? cursor.getDouble(0) : 0;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	private long queryLong(String sql, String[] args) {
+		Cursor cursor = getReadableDatabase().rawQuery(sql, args);
+		try {
+			return (( cursor.moveToFirst() )&&( !cursor.isNull(0) )) ? cursor.getLong(0) : 0;
+		} finally {
+			cursor.close();
+		}
+	}
+}
@@ -0,0 +1,210 @@
+package org.meulenhoff.pebblemytracks;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import org.meulenhoff.pebblemytracks.MyAppSettings.ParameterType;
+
+import com.google.android.apps.mytracks.content.TracksColumns;
+import com.google.android.apps.mytracks.stats.TripStatistics;
+
+import java.util.HashSet;
+import java.util.Set;
+
+// keeps the track index up to date with the tracks of MyTracks. At startup
+// only the tracks after the highest indexed id are read. All tracks are only
+// read again when MyTracks no longer has as many tracks up to that id as the
+// index, because tracks were deleted. Up to CHUNK_TRACKS tracks are written
+// in one transaction. The most recent track may still be recording, it is
+// indexed when it stops or a newer track exists and until then only its
+// distance counts for the odometer. Not thread safe, the service runs it on
+// a single worker.
+public class TrackIndexer {
+	private final String TAG = "PebbleMyTracks";
+
+	// tracks per transaction, so an interrupted refresh keeps most of its work
+	public static final int CHUNK_TRACKS = 500;
+
+	private static final String[] ID_PROJECTION = { TracksColumns._ID };
+	private static final String[] PROJECTION = {
+		TracksColumns._ID, TracksColumns.STARTTIME, TracksColumns.STOPTIME, TracksColumns.TOTALDISTANCE,
+		TracksColumns.TOTALTIME, TracksColumns.MOVINGTIME, TracksColumns.MAXSPEED, TracksColumns.ELEVATIONGAIN
+	};
+
+	private TrackIndex trackIndex;
+	private DisplayPlan metricPlan;
+	private DisplayPlan imperialPlan;
+	// the most recent track when it is not indexed yet
+	private long currentTrackId = -1;
+	private double currentTrackDistance;
+
+	public TrackIndexer(TrackIndex trackIndex) {
+		this.trackIndex = trackIndex;
+		metricPlan = new DisplayPlan(new ParameterType[0], true);
+		imperialPlan = new DisplayPlan(new ParameterType[0], false);
+	}
+
+	// distance of all tracks in m, including the most recent track
+	public double getOdometer() {
+		return trackIndex.getOdometer() + currentTrackDistance;
+	}
+
+	// add a track that just finished, or replace it
+	public void addTrack(long trackId, TripStatistics stats) {
+		SQLiteDatabase db = trackIndex.beginWrite();
+		boolean successful = false;
+		try {
+			put(db, trackId, stats);
+			successful = true;
+		} finally {
+			trackIndex.endWrite(db, successful);
+		}
+		if ( trackId == currentTrackId ) {
+			currentTrackId = -1;
+			currentTrackDistance = 0;
+		}
+	}
+
+	// add the tracks that are missing and drop the deleted ones. Returns
+	// early when the thread is interrupted.
+	public void refresh(ContentResolver contentResolver) {
+		long mark = trackIndex.getMark();
+		String[] markArgs = { Long.toString(mark) };
+
+		Cursor cursor = contentResolver.query(TracksColumns.CONTENT_URI, ID_PROJECTION, TracksColumns._ID + " <= ?", markArgs, null);
+		if ( cursor == null ) {
+			return;
+		}
+		int count;
+		try {
+			count = cursor.getCount();
+		} finally {
+			cursor.close();
+		}
+		if ( count != trackIndex.getCount() ) {
+			Log.i(TAG,"Track index: " + trackIndex.getCount() + " tracks indexed, MyTracks has " + count + ", rescanning");
+			cursor = contentResolver.query(TracksColumns.CONTENT_URI, PROJECTION, TracksColumns._ID + " <= ?", markArgs, TracksColumns._ID);
+			if ( cursor == null ) {
+				return;
+			}
+			try {
+				rescan(cursor);
+			} finally {
+				cursor.close();
+			}
+		}
+
+		cursor = contentResolver.query(TracksColumns.CONTENT_URI, PROJECTION, TracksColumns._ID + " > ?", markArgs, TracksColumns._ID);
+		if ( cursor == null ) {
+			return;
+		}
+		try {
+			int added = add(cursor, true);
+			Log.i(TAG,"Track index: " + added + " tracks added, odometer = " + getOdometer());
+		} finally {
+			cursor.close();
+		}
+	}
+
+	// the tracks up to the mark: add the missing ones, then drop the indexed
+	// tracks that MyTracks no longer has
+	private void rescan(Cursor cursor) {
+		Set<Long> trackIds = new HashSet<Long>();
+		int idIndex = cursor.getColumnIndexOrThrow(TracksColumns._ID);
+		while ( cursor.moveToNext() ) {
+			trackIds.add(cursor.getLong(idIndex));
+		}
+		cursor.moveToPosition(-1);
+		if ( add(cursor, false) < 0 ) {
+			return;
+		}
+
+		SQLiteDatabase db = trackIndex.beginWrite();
+		boolean successful = false;
+		int removed = 0;
+		try {
+			for ( long trackId : trackIndex.getTrackIds() ) {
+				if ( !trackIds.contains(trackId) ) {
+					trackIndex.removeTrack(db, trackId);
+					removed++;
+				}
+			}
+			successful = true;
+		} finally {
+			trackIndex.endWrite(db, successful);
+		}
+		Log.i(TAG,"Track index: " + removed + " deleted tracks removed");
+	}
+
+	// index the tracks of the cursor that are not indexed yet, the last one
+	// only when it cannot be recording anymore. Returns the number of added
+	// tracks, or -1 when the thread was interrupted.
+	private int add(Cursor cursor, boolean lastMayRecord) {
+		int idIndex = cursor.getColumnIndexOrThrow(TracksColumns._ID);
+		int startIndex = cursor.getColumnIndexOrThrow(TracksColumns.STARTTIME);
+		int stopIndex = cursor.getColumnIndexOrThrow(TracksColumns.STOPTIME);
+		int distanceIndex = cursor.getColumnIndexOrThrow(TracksColumns.TOTALDISTANCE);
+		int totalTimeIndex = cursor.getColumnIndexOrThrow(TracksColumns.TOTALTIME);
+		int movingTimeIndex = cursor.getColumnIndexOrThrow(TracksColumns.MOVINGTIME);
+		int maxSpeedIndex = cursor.getColumnIndexOrThrow(TracksColumns.MAXSPEED);
+		int gainIndex = cursor.getColumnIndexOrThrow(TracksColumns.ELEVATIONGAIN);
+
+		if ( lastMayRecord ) {
+			currentTrackId = -1;
+			currentTrackDistance = 0;
+		}
+		int added = 0, chunk = 0;
+		boolean interrupted = false;
+		SQLiteDatabase db = trackIndex.beginWrite();
+		try {
+			while ( cursor.moveToNext() ) {
+				if ( Thread.currentThread().isInterrupted() ) {
+					interrupted = true;
+					break;
+				}
+				long trackId = cursor.getLong(idIndex);
+				if (( lastMayRecord )&&( cursor.isLast() )) {
+					currentTrackId = trackId;
+					currentTrackDistance = cursor.getDouble(distanceIndex);
+					break;
+				}
+				if ( trackIndex.contains(trackId) ) {
+					continue;
+				}
+
+				TripStatistics stats = new TripStatistics();
+				stats.setStartTime(cursor.getLong(startIndex));
+				stats.setStopTime(cursor.getLong(stopIndex));
+				stats.setTotalDistance(cursor.getDouble(distanceIndex));
+				stats.setTotalTime(cursor.getLong(totalTimeIndex));
+				stats.setMovingTime(cursor.getLong(movingTimeIndex));
+				stats.setMaxSpeed(cursor.getDouble(maxSpeedIndex));
+				stats.setTotalElevationGain(cursor.getDouble(gainIndex));
+				put(db, trackId, stats);
+				added++;
+				if ( ++chunk >= CHUNK_TRACKS ) {
+					chunk = 0;
+					trackIndex.endWrite(db, true);
+					db = trackIndex.beginWrite();
+				}
+			}
+		} finally {
+			// the tracks added so far are kept, also after an exception
+			trackIndex.endWrite(db, true);
+		}
+		return interrupted ? -1 : added;
+	}
+
+	private void put(SQLiteDatabase db, long trackId, TripStatistics stats) {
+		trackIndex.putTrack(db, trackId, stats.getStartTime(), stats.getTotalDistance(), stats.getTotalTime(), stats.getMovingTime(),
+				stats.getAverageSpeed(), stats.getMaxSpeed(), stats.getTotalElevationGain(),
+				createTrackSummary(metricPlan, stats), createTrackSummary(imperialPlan, stats));
+	}
+
+	private static String createTrackSummary(DisplayPlan plan, TripStatistics stats) {
+		return plan.createTrackSummary(stats.getStartTime(), stats.getTotalDistance(), stats.getTotalTime(), stats.getMovingTime(),
+				stats.getMaxSpeed(), stats.getTotalElevationGain());
+	}
+}
@@ -0,0 +1,246 @@
+package org.meulenhoff.pebblemytracks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// append-only copy of the valid track points of the recent tracks, one
+// memory-mapped file per column so a track is replayed from plain memory
+// instead of through the MyTracks content provider. Each row keeps the
+// MyTracks point id and the distance along the track, so reading continues
+// at the next point of the provider. The rows are appended in track and
+// point order, the number of valid rows is written after the columns so a
+// partly written row is ignored after a crash. prune() drops the oldest
+// tracks. Only uses java.nio, the store does not depend on Android.
+public class TrackPointStore {
+	public static final int INITIAL_ROWS = 4096;
+
+	private static class Column {
+		private int width;
+		private RandomAccessFile file;
+		private FileChannel channel;
+		private MappedByteBuffer buffer;
+		private long storedBytes;
+
+		Column(File path, int width, int rows) throws IOException {
+			this.width = width;
+			file = new RandomAccessFile(path, "rw");
+			channel = file.getChannel();
+			storedBytes = channel.size();
+			map(Math.max(rows, (int)( channel.size() / width )));
+		}
+
+		private void map(int rows) throws IOException {
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long)rows * width);
+			buffer.order(ByteOrder.nativeOrder());
+		}
+
+		int capacity() {
+			return buffer.capacity() / width;
+		}
+
+		// rows that were completely written to the file before it was opened
+		int storedRows() {
+			return (int)Math.min(Integer.MAX_VALUE, storedBytes / width);
+		}
+
+		void ensureCapacity(int rows) throws IOException {
+			if ( rows > capacity() ) {
+				map((int)Math.min((long)Math.max(rows, capacity() * 2), Integer.MAX_VALUE / width));
+			}
+		}
+
+		// move rows starting at from to the start of the column
+		void moveToStart(int from, int rows) {
+			ByteBuffer source = buffer.duplicate();
+			source.limit(( from + rows ) * width);
+			source.position(from * width);
+			ByteBuffer target = buffer.duplicate();
+			target.position(0);
+			target.put(source);
+		}
+
+		void close() throws IOException {
+			buffer.force();
+			channel.close();
+			file.close();
+		}
+	}
+
+	private Column trackIds;
+	private Column pointIds;
+	private Column times;
+	private Column latitudes;
+	private Column longitudes;
+	private Column altitudes;
+	private Column speeds;
+	private Column bearings;
+	private Column distances;
+	private Column[] columns;
+	private Column count;
+
+	private int size;
+
+	public TrackPointStore(File directory) throws IOException {
+		if (( !directory.isDirectory() )&&( !directory.mkdirs() )) {
+			throw new IOException("Cannot create " + directory);
+		}
+		trackIds = new Column(new File(directory, "track"), 8, INITIAL_ROWS);
+		pointIds = new Column(new File(directory, "point"), 8, INITIAL_ROWS);
+		times = new Column(new File(directory, "time"), 8, INITIAL_ROWS);
+		latitudes = new Column(new File(directory, "lat"), 8, INITIAL_ROWS);
+		longitudes = new Column(new File(directory, "lon"), 8, INITIAL_ROWS);
+		altitudes = new Column(new File(directory, "alt"), 4, INITIAL_ROWS);
+		speeds = new Column(new File(directory, "speed"), 4, INITIAL_ROWS);
+		bearings = new Column(new File(directory, "bearing"), 4, INITIAL_ROWS);
+		distances = new Column(new File(directory, "distance"), 8, INITIAL_ROWS);
+		columns = new Column[] { trackIds, pointIds, times, latitudes, longitudes, altitudes, speeds, bearings, distances };
+		count = new Column(new File(directory, "count"), 8, 1);
+
+		// a column that is shorter than the count was not written completely,
+		// or is missing in a store of an older version
+		long rows = count.buffer.getLong(0);
+		for ( Column column : columns ) {
+			rows = Math.min(rows, column.storedRows());
+		}
+		size = (int)Math.max(0, rows);
+	}
+
+	// altitude, speed and bearing are NaN when unknown, distance is the
+	// distance along the track in m. Points of an older track or with a point
+	// id that is not newer than the last stored point of the track are
+	// skipped, they would break the order of the rows.
+	public synchronized boolean append(long trackId, long pointId, long time, double latitude, double longitude, float altitude, float speed, float bearing, double distance) throws IOException {
+		if (( size > 0 )&&(( getTrackId(size - 1) > trackId )||(( getTrackId(size - 1) == trackId )&&( getPointId(size - 1) >= pointId )))) {
+			return false;
+		}
+		for ( Column column : columns ) {
+			column.ensureCapacity(size + 1);
+		}
+		trackIds.buffer.putLong(size * 8, trackId);
+		pointIds.buffer.putLong(size * 8, pointId);
+		times.buffer.putLong(size * 8, time);
+		latitudes.buffer.putDouble(size * 8, latitude);
+		longitudes.buffer.putDouble(size * 8, longitude);
+		altitudes.buffer.putFloat(size * 4, altitude);
+		speeds.buffer.putFloat(size * 4, speed);
+		bearings.buffer.putFloat(size * 4, bearing);
+		distances.buffer.putDouble(size * 8, distance);
+		size++;
+		count.buffer.putLong(0, size);
+		return true;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public synchronized long getTrackId(int row) {
+		return trackIds.buffer.getLong(row * 8);
+	}
+
+	public synchronized long getPointId(int row) {
+		return pointIds.buffer.getLong(row * 8);
+	}
+
+	public synchronized long getTime(int row) {
+		return times.buffer.getLong(row * 8);
+	}
+
+	public synchronized double getLatitude(int row) {
+		return latitudes.buffer.getDouble(row * 8);
+	}
+
+	public synchronized double getLongitude(int row) {
+		return longitudes.buffer.getDouble(row * 8);
+	}
+
+	public synchronized float getAltitude(int row) {
+		return altitudes.buffer.getFloat(row * 4);
+	}
+
+	public synchronized float getSpeed(int row) {
+		return speeds.buffer.getFloat(row * 4);
+	}
+
+	public synchronized float getBearing(int row) {
+		return bearings.buffer.getFloat(row * 4);
+	}
+
+	public synchronized double getDistance(int row) {
+		return distances.buffer.getDouble(row * 8);
+	}
+
+	// first row of the track, or -1 when the store has no points of it
+	public synchronized int firstRow(long trackId) {
+		int row = lowerBound(trackId);
+		return (( row < size )&&( getTrackId(row) == trackId )) ? row : -1;
+	}
+
+	// the row after the last row of the track
+	public synchronized int endRow(long trackId) {
+		return lowerBound(trackId + 1);
+	}
+
+	// first row with a track id of at least trackId
+	private int lowerBound(long trackId) {
+		int low = 0;
+		int high = size;
+		while ( low < high ) {
+			int mid = ( low + high ) >>> 1;
+			if ( getTrackId(mid) < trackId ) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	// drop the oldest tracks until at most maxRows rows are left. The most
+	// recent track is always kept whole. Returns the number of dropped rows.
+	public synchronized int prune(int maxRows) {
+		if ( size <= maxRows ) {
+			return 0;
+		}
+		// keep whole tracks only
+		int start = size - maxRows;
+		if (( start < size )&&( getTrackId(start - 1) == getTrackId(start) )) {
+			start = endRow(getTrackId(start));
+		}
+		if ( start >= size ) {
+			start = firstRow(getTrackId(size - 1));
+		}
+		if ( start <= 0 ) {
+			return 0;
+		}
+
+		// the store is empty rather than wrong after a crash while moving
+		count.buffer.putLong(0, 0);
+		for ( Column column : columns ) {
+			column.moveToStart(start, size - start);
+		}
+		size -= start;
+		count.buffer.putLong(0, size);
+		return start;
+	}
+
+	// write the mapped pages to the files
+	public synchronized void flush() {
+		for ( Column column : columns ) {
+			column.buffer.force();
+		}
+		count.buffer.force();
+	}
+
+	public synchronized void close() throws IOException {
+		for ( Column column : columns ) {
+			column.close();
+		}
+		count.close();
+	}
+}
@@ -0,0 +1,217 @@
+package org.meulenhoff.pebblemytracks;
+
+import android.location.Location;
+import android.util.Log;
+
+import com.google.android.apps.mytracks.content.MyTracksProviderUtils;
+import com.google.android.apps.mytracks.content.MyTracksProviderUtils.LocationIterator;
+import com.google.android.apps.mytracks.content.Track;
+import com.google.android.apps.mytracks.stats.TripStatistics;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// in-process cache of the track currently being recorded. Only the track
+// points written since the previous update are read from the provider. When
+// a track is loaded, its points are replayed from the track point store and
+// the provider is only read after the last stored point; a track that is
+// not in the store yet is read from its start and added to it. All valid
+// points are passed on to the listeners; replayed points go straight from
+// the store columns, only the start and last location become a Location.
+public class TrackStateCache {
+	private final String TAG = "PebbleMyTracks";
+
+	public interface Listener {
+		// a different track is loaded, previous points no longer apply
+		public void onTrackChanged(long trackId);
+
+		// a new valid point, distance is the distance covered since the
+		// start of the track, excluding pauses. altitude is NaN and speed
+		// is -1 when the point has none.
+		public void onTrackPoint(long time, double distance, double altitude, double speed);
+
+		// the points recorded before the track was loaded were passed on
+		public void onTrackLoaded(long trackId);
+	}
+
+	private MyTracksProviderUtils myTracksProviderUtils;
+	// null when the store is not available
+	private TrackPointStore trackPointStore;
+	private List<Listener> listeners = new ArrayList<Listener>();
+
+	private long trackId;
+	private long lastPointId;
+	private Location startLocation;
+	private Location lastLocation;
+	private TripStatistics statistics;
+	private double distance;
+	private boolean segmentStart;
+
+	public TrackStateCache(MyTracksProviderUtils myTracksProviderUtils, TrackPointStore trackPointStore) {
+		this.myTracksProviderUtils = myTracksProviderUtils;
+		this.trackPointStore = trackPointStore;
+		invalidate();
+	}
+
+	public synchronized void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	// forget everything, the next update starts from scratch
+	public synchronized void invalidate() {
+		trackId = -1L;
+		lastPointId = -1L;
+		startLocation = null;
+		lastLocation = null;
+		statistics = null;
+		distance = 0;
+		segmentStart = true;
+	}
+
+	// returns true when a valid last location is available
+	public synchronized boolean update() {
+		Track track = myTracksProviderUtils.getLastTrack();
+		if ( track == null ) {
+			invalidate();
+			return false;
+		}
+
+		if ( track.getId() != trackId ) {
+			Log.i(TAG,"Track state cache: loading track " + track.getId());
+			invalidate();
+			trackId = track.getId();
+			statistics = track.getTripStatistics();
+			for ( Listener listener : listeners ) {
+				listener.onTrackChanged(trackId);
+			}
+			int replayed = replayStoredTrackPoints();
+			int read = readNewTrackPoints();
+			Log.i(TAG,"Track state cache: " + replayed + " points from the store, " + read + " from MyTracks");
+			for ( Listener listener : listeners ) {
+				listener.onTrackLoaded(trackId);
+			}
+		} else {
+			readNewTrackPoints();
+		}
+		statistics = track.getTripStatistics();
+
+		return lastLocation != null;
+	}
+
+	// the stored points of the track, returns the number of points
+	private int replayStoredTrackPoints() {
+		if ( trackPointStore == null ) {
+			return 0;
+		}
+		int first = trackPointStore.firstRow(trackId);
+		if ( first < 0 ) {
+			return 0;
+		}
+		int end = trackPointStore.endRow(trackId);
+		for ( int row = first; row < end; row++ ) {
+			distance = trackPointStore.getDistance(row);
+			float speed = trackPointStore.getSpeed(row);
+			long time = trackPointStore.getTime(row);
+			double altitude = trackPointStore.getAltitude(row);
+			for ( Listener listener : listeners ) {
+				listener.onTrackPoint(time, distance, altitude, Float.isNaN(speed) ? -1 : speed);
+			}
+		}
+		lastPointId = trackPointStore.getPointId(end - 1);
+		if ( startLocation == null ) {
+			startLocation = storedLocation(first);
+		}
+		lastLocation = storedLocation(end - 1);
+		// pause markers after the last stored point are read again
+		segmentStart = false;
+		return end - first;
+	}
+
+	private Location storedLocation(int row) {
+		Location loc = new Location("TrackPointStore");
+		loc.setTime(trackPointStore.getTime(row));
+		loc.setLatitude(trackPointStore.getLatitude(row));
+		loc.setLongitude(trackPointStore.getLongitude(row));
+		if ( !Float.isNaN(trackPointStore.getAltitude(row)) ) {
+			loc.setAltitude(trackPointStore.getAltitude(row));
+		}
+		if ( !Float.isNaN(trackPointStore.getSpeed(row)) ) {
+			loc.setSpeed(trackPointStore.getSpeed(row));
+		}
+		if ( !Float.isNaN(trackPointStore.getBearing(row)) ) {
+			loc.setBearing(trackPointStore.getBearing(row));
+		}
+		return loc;
+	}
+
+	// returns the number of valid points
+	private int readNewTrackPoints() {
+		int count = 0;
+		LocationIterator iterator = myTracksProviderUtils.getTrackPointLocationIterator(trackId, lastPointId + 1, false, MyTracksProviderUtils.DEFAULT_LOCATION_FACTORY);
+		try {
+			while ( iterator.hasNext() ) {
+				Location loc = iterator.next();
+				lastPointId = iterator.getLocationId();
+				if ( !isValid(loc) ) {
+					segmentStart = true;
+					continue;
+				}
+				if ( startLocation == null ) {
+					startLocation = loc;
+				}
+				if (( !segmentStart )&&( lastLocation != null )) {
+					distance += lastLocation.distanceTo(loc);
+				}
+				segmentStart = false;
+				lastLocation = loc;
+				count++;
+				store(loc);
+				double altitude = loc.hasAltitude() ? loc.getAltitude() : Double.NaN;
+				double speed = loc.hasSpeed() ? loc.getSpeed() : -1;
+				for ( Listener listener : listeners ) {
+					listener.onTrackPoint(loc.getTime(), distance, altitude, speed);
+				}
+			}
+		} finally {
+			iterator.close();
+		}
+		return count;
+	}
+
+	private void store(Location loc) {
+		if ( trackPointStore == null ) {
+			return;
+		}
+		try {
+			trackPointStore.append(trackId, lastPointId, loc.getTime(), loc.getLatitude(), loc.getLongitude(),
+					loc.hasAltitude() ? (float)loc.getAltitude() : Float.NaN,
+					loc.hasSpeed() ? loc.getSpeed() : Float.NaN,
+					loc.hasBearing() ? loc.getBearing() : Float.NaN,
+					distance);
+		} catch ( IOException e ) {
+			Log.i(TAG,"Exception during track point store append: " + e.getMessage());
+		}
+	}
+
+	// MyTracks stores pause and resume markers as points with an invalid latitude
+	private static boolean isValid(Location loc) {
+		return ( loc != null )&&( Math.abs(loc.getLatitude()) <= 90 )&&( Math.abs(loc.getLongitude()) <= 180 );
+	}
+
+	public synchronized long getTrackId() {
+		return trackId;
+	}
+
+	public synchronized Location getStartLocation() {
+		return startLocation;
+	}
+
+	public synchronized Location getLastLocation() {
+		return lastLocation;
+	}
+
+	public synchronized TripStatistics getStatistics() {
+		return statistics;
+	}
+}
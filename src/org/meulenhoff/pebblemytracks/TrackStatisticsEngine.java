@@ -0,0 +1,115 @@
+package org.meulenhoff.pebblemytracks;
+
+// running statistics of the current track, updated in O(1) from every new
+// track point so the track never has to be scanned again
+public class TrackStatisticsEngine {
+	public static final double GRADE_DISTANCE = 100; // m over which a grade is measured
+	public static final int GRADE_SAMPLES = 64;
+
+	private boolean hasElevation;
+	private double minElevation;
+	private double maxElevation;
+	private double maxSpeed;
+
+	private boolean hasGrade;
+	private double minGrade;
+	private double maxGrade;
+	private ElevationWindow gradeWindow = new ElevationWindow(GRADE_SAMPLES, GRADE_DISTANCE);
+
+	public TrackStatisticsEngine() {
+		reset();
+	}
+
+	public void reset() {
+		hasElevation = false;
+		minElevation = 0;
+		maxElevation = 0;
+		maxSpeed = 0;
+		hasGrade = false;
+		minGrade = 0;
+		maxGrade = 0;
+		gradeWindow.clear();
+	}
+
+	// start from the statistics recorded by MyTracks before the track was
+	// loaded, grades are fractions as stored by MyTracks and elevations and
+	// grades are infinite when MyTracks has none
+	public void seed(double maxSpeed, double minElevation, double maxElevation, double minGrade, double maxGrade) {
+		this.maxSpeed = Math.max(this.maxSpeed, maxSpeed);
+		if (( !Double.isInfinite(minElevation) )&&( !Double.isInfinite(maxElevation) )) {
+			this.minElevation = hasElevation ? Math.min(this.minElevation, minElevation) : minElevation;
+			this.maxElevation = hasElevation ? Math.max(this.maxElevation, maxElevation) : maxElevation;
+			hasElevation = true;
+		}
+		if (( !Double.isInfinite(minGrade) )&&( !Double.isInfinite(maxGrade) )) {
+			this.minGrade = hasGrade ? Math.min(this.minGrade, minGrade * 100) : minGrade * 100;
+			this.maxGrade = hasGrade ? Math.max(this.maxGrade, maxGrade * 100) : maxGrade * 100;
+			hasGrade = true;
+		}
+	}
+
+	// distance along the track in m, elevation in m or NaN when unknown,
+	// speed in m/s or a negative value when unknown, time in ms
+	public void add(double distance, double elevation, double speed, long time) {
+		if ( speed > maxSpeed ) {
+			maxSpeed = speed;
+		}
+
+		if ( Double.isNaN(elevation) ) {
+			return;
+		}
+
+		if ( !hasElevation ) {
+			minElevation = elevation;
+			maxElevation = elevation;
+			hasElevation = true;
+		} else {
+			minElevation = Math.min(minElevation, elevation);
+			maxElevation = Math.max(maxElevation, elevation);
+		}
+
+		gradeWindow.add(distance, elevation, time);
+		if ( gradeWindow.isComplete() ) {
+			double grade = gradeWindow.getGrade();
+			if ( !hasGrade ) {
+				minGrade = grade;
+				maxGrade = grade;
+				hasGrade = true;
+			} else {
+				minGrade = Math.min(minGrade, grade);
+				maxGrade = Math.max(maxGrade, grade);
+			}
+		}
+	}
+
+	// grade over the last GRADE_DISTANCE m in %
+	public double getGrade() {
+		return gradeWindow.isComplete() ? gradeWindow.getGrade() : 0;
+	}
+
+	// vertical speed (VAM) over the last GRADE_DISTANCE m in m/h
+	public double getVerticalSpeed() {
+		return gradeWindow.getVerticalSpeed();
+	}
+
+	public double getMinElevation() {
+		return minElevation;
+	}
+
+	public double getMaxElevation() {
+		return maxElevation;
+	}
+
+	public double getMaxSpeed() {
+		return maxSpeed;
+	}
+
+	// grades in percent
+	public double getMinGrade() {
+		return minGrade;
+	}
+
+	public double getMaxGrade() {
+		return maxGrade;
+	}
+}
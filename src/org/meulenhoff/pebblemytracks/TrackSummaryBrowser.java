@@ -0,0 +1,238 @@
+package org.meulenhoff.pebblemytracks;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.util.Log;
+
+import com.google.android.apps.mytracks.content.TracksColumns;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+// browses the track summaries from the most recent track backwards. Only the
+// track ids are kept in memory, the summaries of the tracks around the
+// current position are rendered ahead of time.
+public class TrackSummaryBrowser {
+	private final String TAG = "PebbleMyTracks";
+	public static final int PREFETCH = 2;
+	private static final String[] PROJECTION = { TracksColumns._ID };
+
+	public interface Renderer {
+		// summary of the track, or null when the track does not exist
+		public String createTrackSummary(long trackId);
+	}
+
+	private ContentResolver contentResolver;
+	private Renderer renderer;
+	private Executor executor;
+
+	private long[] trackIds;
+	private int position;
+	private Map<Long,String> summaries = new HashMap<Long,String>();
+
+	public TrackSummaryBrowser(ContentResolver contentResolver, Renderer renderer, Executor executor) {
+		this.contentResolver = contentResolver;
+		this.renderer = renderer;
+		this.executor = executor;
+		trackIds = null;
+		position = -1;
+	}
+
+	// the list of tracks changed
+	public synchronized void invalidate() {
+		trackIds = null;
+		position = -1;
+	}
+
+	// the rendering of the summaries changed
+	public synchronized void clearSummaries() {
+		summaries.clear();
+	}
+
+	// summary of the most recent track, or null when there are no tracks
+	public String first() {
+		long trackId;
+		synchronized ( this ) {
+			if ( trackIds == null ) {
+				trackIds = loadTrackIds();
+			}
+			if ( trackIds.length == 0 ) {
+				return null;
+			}
+			position = trackIds.length - 1;
+			trackId = trackIds[position];
+		}
+		return summary(trackId);
+	}
+
+	// summary of the track before the current one, wrapping around to the
+	// most recent track
+	public String next() {
+		long trackId;
+		synchronized ( this ) {
+			if ( trackIds == null ) {
+				trackIds = loadTrackIds();
+				position = -1;
+			}
+			if ( trackIds.length == 0 ) {
+				return null;
+			}
+			position--;
+			if ( position < 0 ) {
+				position = trackIds.length - 1;
+			}
+			trackId = trackIds[position];
+		}
+		return summary(trackId);
+	}
+
+	public synchronized int getTrackCount() {
+		if ( trackIds == null ) {
+			trackIds = loadTrackIds();
+			position = -1;
+		}
+		return trackIds.length;
+	}
+
+	// summaries starting at the index-th most recent track, as many as fit
+	// in budget bytes when every entry costs its UTF-8 length plus a null
+	// terminator and overhead bytes. Missing tracks give an empty summary so
+	// the entries stay consecutive. The position moves to the last summary.
+	public List<String> batch(int index, int maxCount, int budget, int overhead) {
+		List<String> batch = new ArrayList<String>();
+		int count = getTrackCount();
+		for ( int i = index; ( i < count )&&( batch.size() < maxCount ); i++ ) {
+			long trackId;
+			synchronized ( this ) {
+				if (( trackIds == null )||( i >= trackIds.length )) {
+					break;
+				}
+				trackId = trackIds[trackIds.length - 1 - i];
+			}
+			String summary;
+			synchronized ( this ) {
+				summary = summaries.get(trackId);
+			}
+			if ( summary == null ) {
+				summary = render(trackId);
+			}
+			if ( summary == null ) {
+				summary = "";
+			}
+			int size = overhead + encodedLength(summary) + 1;
+			if ( size > budget ) {
+				break;
+			}
+			budget -= size;
+			batch.add(summary);
+			synchronized ( this ) {
+				if ( trackIds != null ) {
+					position = trackIds.length - 1 - i;
+				}
+			}
+		}
+		prefetch();
+		return batch;
+	}
+
+	private static int encodedLength(String s) {
+		try {
+			return s.getBytes("UTF-8").length;
+		} catch ( UnsupportedEncodingException e ) {
+			return s.length();
+		}
+	}
+
+	private String summary(long trackId) {
+		String summary;
+		synchronized ( this ) {
+			summary = summaries.get(trackId);
+		}
+		if ( summary == null ) {
+			summary = render(trackId);
+		}
+		prefetch();
+		return summary;
+	}
+
+	private String render(long trackId) {
+		String summary = renderer.createTrackSummary(trackId);
+		if ( summary == null ) {
+			return null;
+		}
+		synchronized ( this ) {
+			summaries.put(trackId, summary);
+		}
+		return summary;
+	}
+
+	// render the neighbouring summaries in the background and drop the ones
+	// that moved out of range
+	private synchronized void prefetch() {
+		if (( trackIds == null )||( position < 0 )) {
+			return;
+		}
+		final long[] window = new long[2 * PREFETCH + 1];
+		for ( int i = -PREFETCH; i <= PREFETCH; i++ ) {
+			int p = ( position + i + trackIds.length ) % trackIds.length;
+			window[i + PREFETCH] = trackIds[p];
+		}
+
+		Iterator<Long> iterator = summaries.keySet().iterator();
+		while ( iterator.hasNext() ) {
+			if ( !contains(window, iterator.next()) ) {
+				iterator.remove();
+			}
+		}
+
+		executor.execute(new Runnable() {
+			public void run() {
+				for ( long trackId : window ) {
+					synchronized ( TrackSummaryBrowser.this ) {
+						if ( summaries.containsKey(trackId) ) {
+							continue;
+						}
+					}
+					try {
+						render(trackId);
+					} catch ( Exception e ) {
+						Log.i(TAG,"Exception during summary prefetch: " + e.getMessage());
+					}
+				}
+			}
+		});
+	}
+
+	private static boolean contains(long[] values, long value) {
+		for ( long v : values ) {
+			if ( v == value ) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// only the id column is read
+	private long[] loadTrackIds() {
+		Cursor cursor = contentResolver.query(TracksColumns.CONTENT_URI, PROJECTION, null, null, TracksColumns._ID);
+		if ( cursor == null ) {
+			return new long[0];
+		}
+		try {
+			long[] ids = new long[cursor.getCount()];
+			int idIndex = cursor.getColumnIndexOrThrow(TracksColumns._ID);
+			int i = 0;
+			while ( cursor.moveToNext() && ( i < ids.length ) ) {
+				ids[i++] = cursor.getLong(idIndex);
+			}
+			return ids;
+		} finally {
+			cursor.close();
+		}
+	}
+}
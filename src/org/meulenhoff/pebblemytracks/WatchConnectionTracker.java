@@ -0,0 +1,81 @@
+package org.meulenhoff.pebblemytracks;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import com.getpebble.android.kit.PebbleKit;
+
+// keeps track of the connection to the watch from the PebbleKit connected
+// and disconnected broadcasts, so the connection state does not have to be
+// queried from the Pebble app for every message. Changes are reported to the
+// listener on the event loop.
+public class WatchConnectionTracker {
+	private final String TAG = "PebbleMyTracks";
+
+	public interface Listener {
+		public void onWatchConnectionChanged(boolean connected);
+	}
+
+	private Context context;
+	private EventLoop eventLoop;
+	private Listener listener;
+	private volatile boolean connected;
+
+	private BroadcastReceiver connectedReceiver;
+	private BroadcastReceiver disconnectedReceiver;
+
+	public WatchConnectionTracker(Context context, EventLoop eventLoop, Listener listener) {
+		this.context = context;
+		this.eventLoop = eventLoop;
+		this.listener = listener;
+	}
+
+	public void start() {
+		connectedReceiver = PebbleKit.registerPebbleConnectedReceiver(context, new BroadcastReceiver() {
+			@Override
+			public void onReceive(Context context, Intent intent) {
+				Log.i(TAG,"Pebble connected");
+				setConnected(true);
+			}
+		});
+		disconnectedReceiver = PebbleKit.registerPebbleDisconnectedReceiver(context, new BroadcastReceiver() {
+			@Override
+			public void onReceive(Context context, Intent intent) {
+				Log.i(TAG,"Pebble disconnected");
+				setConnected(false);
+			}
+		});
+
+		// the only query, the broadcasts keep the state up to date
+		connected = PebbleKit.isWatchConnected(context);
+	}
+
+	public void stop() {
+		if ( connectedReceiver != null ) {
+			context.unregisterReceiver(connectedReceiver);
+			connectedReceiver = null;
+		}
+		if ( disconnectedReceiver != null ) {
+			context.unregisterReceiver(disconnectedReceiver);
+			disconnectedReceiver = null;
+		}
+	}
+
+	public boolean isConnected() {
+		return connected;
+	}
+
+	private void setConnected(final boolean connected) {
+		if ( this.connected == connected ) {
+			return;
+		}
+		this.connected = connected;
+		eventLoop.post(new Runnable() {
+			public void run() {
+				listener.onWatchConnectionChanged(connected);
+			}
+		});
+	}
+}
@@ -0,0 +1,60 @@
+package org.meulenhoff.pebblemytracks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CommandCoalescerTest {
+	private static final long WINDOW = CommandCoalescer.WINDOW;
+	private static final int CMD_START_TRACK = 1;
+	private static final int CMD_STOP_TRACK = 2;
+	private static final int CMD_PAUSE_TRACK = 3;
+	private static final int CMD_RESUME_TRACK = 4;
+
+	private static CommandCoalescer createCoalescer() {
+		return new CommandCoalescer(new int[][] {
+			{ CMD_PAUSE_TRACK, CMD_RESUME_TRACK }, { CMD_START_TRACK, CMD_STOP_TRACK }
+		});
+	}
+
+	@Test
+	public void releasesAfterTheWindow() {
+		CommandCoalescer coalescer = createCoalescer();
+		assertEquals(1000 + WINDOW, coalescer.offer(CMD_PAUSE_TRACK, 1000));
+		assertNull(coalescer.poll(1000 + WINDOW - 1));
+		assertEquals("[" + CMD_PAUSE_TRACK + "]", coalescer.poll(1000 + WINDOW).toString());
+		assertTrue(coalescer.isEmpty());
+	}
+
+	@Test
+	public void laterCommandMovesTheRelease() {
+		CommandCoalescer coalescer = createCoalescer();
+		coalescer.offer(CMD_PAUSE_TRACK, 1000);
+		coalescer.offer(CMD_STOP_TRACK, 1200);
+
+		// a runnable due at the first release finds the window still open
+		// and must wait for the rest of it, not a whole window
+		assertNull(coalescer.poll(1000 + WINDOW));
+		assertEquals(1200 + WINDOW, coalescer.getReleaseTime());
+		assertEquals(2, coalescer.poll(coalescer.getReleaseTime()).size());
+	}
+
+	@Test
+	public void doublePressIsDropped() {
+		CommandCoalescer coalescer = createCoalescer();
+		coalescer.offer(CMD_PAUSE_TRACK, 1000);
+		coalescer.offer(CMD_PAUSE_TRACK, 1100);
+		assertEquals(1, coalescer.poll(1100 + WINDOW).size());
+	}
+
+	@Test
+	public void undoCancelsBoth() {
+		CommandCoalescer coalescer = createCoalescer();
+		coalescer.offer(CMD_PAUSE_TRACK, 1000);
+		coalescer.offer(CMD_RESUME_TRACK, 1100);
+		assertTrue(coalescer.isEmpty());
+		assertNull(coalescer.poll(1100 + WINDOW));
+	}
+}
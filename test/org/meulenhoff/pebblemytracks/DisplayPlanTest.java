@@ -0,0 +1,158 @@
+package org.meulenhoff.pebblemytracks;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Locale;
+import java.util.TimeZone;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.meulenhoff.pebblemytracks.MyAppSettings.ParameterType;
+
+
+// pins the exact watch output of every field type in both unit systems
+public class DisplayPlanTest {
+	private static TimeZone defaultTimeZone;
+	private static Locale defaultLocale;
+
+	@BeforeClass
+	public static void setUp() {
+		defaultTimeZone = TimeZone.getDefault();
+		defaultLocale = Locale.getDefault();
+		TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+		Locale.setDefault(Locale.US);
+	}
+
+	@AfterClass
+	public static void tearDown() {
+		TimeZone.setDefault(defaultTimeZone);
+		Locale.setDefault(defaultLocale);
+	}
+
+	private static SportsData createData() {
+		SportsData data = new SportsData();
+		data.setSpeed(3.4);
+		data.setAvgspeed(3.1);
+		data.setAvgmovingspeed(3.3);
+		data.setMaxspeed(7.9);
+		data.setDistance(12345.6);
+		data.setDistanceToStart(2345.6);
+		data.setBearing(-12.4);
+		data.setHeading(271.6);
+		data.setMinaltitude(12.3);
+		data.setMaxaltitude(245.7);
+		data.setMingrade(-6.25);
+		data.setMaxgrade(8.04);
+		data.setGrade(4.15);
+		data.setVerticalspeed(310.5);
+		data.setElevationGain(1234);
+		data.setTotaltime(4321000);
+		data.setTotalTimeFromStart(4500000);
+		data.setTotalmovingtime(3599000);
+		data.setStartTime(1400000000000L);
+		data.setStopTime(1400004321000L);
+		data.setEtaStart(0);
+		data.setPace(0.294);
+		data.setWeekDistance(42195);
+		data.setMonthDistance(150000);
+		data.setLongestDistance(42195);
+		data.setFastestAvgSpeed(4.2);
+		data.setBiggestElevationGain(987);
+		data.setLapTime(300000);
+		data.setLapDistance(1000);
+		data.setLapAvgspeed(3.3);
+		return data;
+	}
+
+	private static String createTrackSummary(boolean metric) {
+		return new DisplayPlan(new ParameterType[0], metric).createTrackSummary(1400000000000L, 12345.6, 4321000, 4000000, 7.9, 234.5);
+	}
+
+	private static String render(DisplayPlan plan, SportsData data) {
+		FieldFormatter out = new FieldFormatter();
+		plan.render(data, out);
+		return out.toString();
+	}
+
+	private static String encode(DisplayPlan plan, SportsData data) {
+		BinaryFieldEncoder out = new BinaryFieldEncoder();
+		plan.encode(data, out);
+		StringBuilder hex = new StringBuilder();
+		for ( byte b : out.toByteArray() ) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	// in the order of ParameterType.values()
+	@Test
+	public void renderMetric() {
+		DisplayPlan plan = new DisplayPlan(ParameterType.values(), true);
+		assertEquals("12.2;01:12;01:15;59:59;--:--;12.3;2.3;11.2;11.9;16:53;18:05;1.23;12;246;8.0;-6.3;4.2;311;-12;272;28.4;04:54;42.2;150;42.2;15.1;987;05:00;1.0;11.9;-",
+				render(plan, createData()));
+	}
+
+	@Test
+	public void renderImperial() {
+		DisplayPlan plan = new DisplayPlan(ParameterType.values(), false);
+		assertEquals("7.6;01:12;01:15;59:59;--:--;7.7;1.5;6.9;7.4;16:53;18:05;4.05;40;806;8.0;-6.3;4.2;1019;-12;272;17.7;07:53;26.2;93.2;26.2;9.4;3238;05:00;0.6;7.4;-",
+				render(plan, createData()));
+	}
+
+	@Test
+	public void encodeMetric() {
+		DisplayPlan plan = new DisplayPlan(ParameterType.values(), true);
+		assertEquals("7a00e1100000941100000f0e0000ffffd3040000eb00000070007700f5033d04d20400000c00f6005000c2ff2a003701f4ff10011c01260100007c100000983a00007c1000009700db032c0100006400000077000000",
+				encode(plan, createData()));
+	}
+
+	@Test
+	public void encodeImperial() {
+		DisplayPlan plan = new DisplayPlan(ParameterType.values(), false);
+		assertEquals("4c00e1100000941100000f0e0000ffffff0200009200000045004a00f5033d04d10f0000280026035000c2ff2a00fb03f4ff1001b100d90100003e0a0000692400003e0a00005e00a60c2c0100003e0000004a000000",
+				encode(plan, createData()));
+	}
+
+	@Test
+	public void standingStill() {
+		SportsData data = createData();
+		data.setPace(0);
+		data.setEtaStart(1400005000000L);
+		DisplayPlan plan = new DisplayPlan(new ParameterType[] { ParameterType.PACE, ParameterType.ETASTART }, true);
+		assertEquals("--:--;18:16", render(plan, data));
+		assertEquals("ffffffff4804", encode(plan, data));
+	}
+
+	@Test
+	public void trackSummary() {
+		assertEquals("May/13/2014 16:53;12.3 km;01:12:01;10.3 kmh;11.1 kmh;28.4 kmh;234.5 m",
+				createTrackSummary(true));
+		assertEquals("May/13/2014 16:53;7.7 miles;01:12:01;6.4 mph;6.9 mph;17.7 mph;769.4 ft",
+				createTrackSummary(false));
+	}
+
+	@Test
+	public void recordsSummary() {
+		assertEquals("42.2 km;150.0 km;42.2 km;15.1 kmh;987 m",
+				new DisplayPlan(new ParameterType[0], true).createRecordsSummary(createData()));
+		assertEquals("26.2 miles;93.2 miles;26.2 miles;9.4 mph;3238 ft",
+				new DisplayPlan(new ParameterType[0], false).createRecordsSummary(createData()));
+	}
+
+	@Test
+	public void lapSummary() {
+		assertEquals("3;00:05:00;1.00 km;11.9 kmh",
+				new DisplayPlan(new ParameterType[0], true).createLapSummary(3, 300000, 1000, 3.3));
+		assertEquals("3;00:05:00;0.62 miles;7.4 mph",
+				new DisplayPlan(new ParameterType[0], false).createLapSummary(3, 300000, 1000, 3.3));
+	}
+
+	@Test
+	public void sportsApp() {
+		DisplayPlan metric = new DisplayPlan(new ParameterType[0], true);
+		DisplayPlan imperial = new DisplayPlan(new ParameterType[0], false);
+		assertEquals(12.3456, metric.getSportsDistance(createData()), 1e-9);
+		assertEquals(7.6712, imperial.getSportsDistance(createData()), 1e-4);
+	}
+}
@@ -0,0 +1,82 @@
+package org.meulenhoff.pebblemytracks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ElevationWindowTest {
+	private static final double DELTA = 1e-9;
+
+	// a 5% slope climbed at 1 m/s, one sample per spacing m
+	private static void climb(ElevationWindow window, double from, double to, double spacing) {
+		for ( double d = from; d <= to + DELTA; d += spacing ) {
+			window.add(d, d * 0.05, (long)( d * 1000 ));
+		}
+	}
+
+	@Test
+	public void incompleteUntilTheWindowIsCovered() {
+		ElevationWindow window = new ElevationWindow(64, 100);
+		assertFalse(window.isComplete());
+		assertEquals(0, window.getGrade(), DELTA);
+		climb(window, 0, 99, 1);
+		assertFalse(window.isComplete());
+		climb(window, 100, 100, 1);
+		assertTrue(window.isComplete());
+		assertEquals(100, window.getDistance(), DELTA);
+		assertEquals(5, window.getGrade(), DELTA);
+	}
+
+	@Test
+	public void sparseSamples() {
+		ElevationWindow window = new ElevationWindow(64, 100);
+		climb(window, 0, 1000, 30);
+		assertTrue(window.isComplete());
+		assertTrue(window.getDistance() >= 100);
+		assertTrue(window.getDistance() < 130);
+		assertEquals(5, window.getGrade(), DELTA);
+	}
+
+	// more points per window than samples used to evict the start of the
+	// window, so it was never complete
+	@Test
+	public void denseSamplesStillCoverTheWindow() {
+		for ( double spacing : new double[] { 1, 0.5, 0.1 } ) {
+			ElevationWindow window = new ElevationWindow(64, 100);
+			climb(window, 0, 500, spacing);
+			assertTrue("spacing " + spacing, window.isComplete());
+			assertTrue(window.getDistance() >= 100);
+			assertTrue(window.size() <= 64);
+			assertEquals(5, window.getGrade(), 1e-6);
+		}
+	}
+
+	@Test
+	public void verticalSpeed() {
+		ElevationWindow window = new ElevationWindow(64, 100);
+		climb(window, 0, 300, 0.5);
+		// 0.05 m/s
+		assertEquals(180, window.getVerticalSpeed(), 1e-6);
+	}
+
+	@Test
+	public void gradeFollowsTheSlope() {
+		ElevationWindow window = new ElevationWindow(64, 100);
+		climb(window, 0, 200, 1);
+		for ( int d = 201; d <= 400; d++ ) {
+			window.add(d, 10, d * 1000);
+		}
+		assertEquals(0, window.getGrade(), DELTA);
+	}
+
+	@Test
+	public void clear() {
+		ElevationWindow window = new ElevationWindow(64, 100);
+		climb(window, 0, 200, 1);
+		window.clear();
+		assertEquals(0, window.size());
+		assertFalse(window.isComplete());
+	}
+}
@@ -0,0 +1,72 @@
+package org.meulenhoff.pebblemytracks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Locale;
+
+import org.junit.Test;
+
+public class FieldFormatterTest {
+	private static String fixed(double value, int decimals) {
+		return new FieldFormatter().appendFixed(value, decimals).toString();
+	}
+
+	// every value with three decimals, which includes all half-way points of
+	// one and two decimals
+	@Test
+	public void sameAsStringFormatForDecimalValues() {
+		for ( int i = -20000; i <= 20000; i++ ) {
+			double value = i / 1000.0;
+			for ( int decimals = 0; decimals <= 2; decimals++ ) {
+				assertEquals(String.format(Locale.US, "%." + decimals + "f", value), fixed(value, decimals));
+			}
+		}
+	}
+
+	@Test
+	public void roundsHalfUpOnTheDecimalValue() {
+		assertEquals("2.68", fixed(2.675, 2));
+		assertEquals("1.01", fixed(1.005, 2));
+		assertEquals("0.2", fixed(0.15, 1));
+		assertEquals("-0.0", fixed(-0.04, 1));
+		assertEquals("12346", fixed(12345.5, 0));
+	}
+
+	// documented difference with String.format, which gives "0.0"
+	@Test
+	public void justBelowAHalfWayPoint() {
+		assertEquals("0.1", fixed(0.04999999999999999, 1));
+	}
+
+	@Test
+	public void decimalPointDoesNotFollowTheLocale() {
+		Locale defaultLocale = Locale.getDefault();
+		Locale.setDefault(Locale.GERMANY);
+		try {
+			assertEquals("3.5", fixed(3.5, 1));
+		} finally {
+			Locale.setDefault(defaultLocale);
+		}
+	}
+
+	@Test
+	public void durations() {
+		assertEquals("00:59", new FieldFormatter().appendDuration(59).toString());
+		assertEquals("59:59", new FieldFormatter().appendDuration(3599).toString());
+		assertEquals("01:00", new FieldFormatter().appendDuration(3600).toString());
+		assertEquals("27:46", new FieldFormatter().appendDuration(100000).toString());
+	}
+
+	@Test
+	public void contentEquals() {
+		FieldFormatter out = new FieldFormatter();
+		out.append("12.3").append(';').appendFixed(4.56, 1);
+		assertTrue(out.contentEquals("12.3;4.6"));
+		assertFalse(out.contentEquals("12.3;4.5"));
+		assertFalse(out.contentEquals(null));
+		out.reset();
+		assertTrue(out.contentEquals(""));
+	}
+}
@@ -0,0 +1,77 @@
+package org.meulenhoff.pebblemytracks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LapEngineTest {
+	private static final double DELTA = 1e-9;
+	// GPS time of the first point, far from the phone clock on purpose
+	private static final long START = 1000000000L;
+
+	// 2 m/s, one point per 10 m
+	private static void run(LapEngine engine, double from, double to) {
+		for ( double d = from; d <= to + DELTA; d += 10 ) {
+			engine.add(d, START + (long)( d * 500 ));
+		}
+	}
+
+	@Test
+	public void autoLap() {
+		LapEngine engine = new LapEngine();
+		engine.setLapLength(1000);
+		run(engine, 0, 2500);
+		assertEquals(2, engine.getCompletedLaps());
+		assertEquals(3, engine.getLapNumber());
+		assertEquals(500000, engine.getLastLapTime());
+		assertEquals(1000, engine.getLastLapDistance(), DELTA);
+		assertEquals(2, engine.getLastLapAverageSpeed(), DELTA);
+		assertEquals(500, engine.getLapDistance(), DELTA);
+		assertEquals(2, engine.getLapAverageSpeed(), DELTA);
+	}
+
+	@Test
+	public void autoLapBetweenSparsePoints() {
+		LapEngine engine = new LapEngine();
+		engine.setLapLength(1000);
+		engine.add(0, START);
+		engine.add(900, START + 450000);
+		assertTrue(engine.add(1300, START + 650000));
+		assertEquals(500000, engine.getLastLapTime());
+		assertEquals(300, engine.getLapDistance(), DELTA);
+	}
+
+	@Test
+	public void manualLapUsesTheTimeOfTheLastPoint() {
+		LapEngine engine = new LapEngine();
+		assertFalse(engine.lap());
+		run(engine, 0, 300);
+		assertTrue(engine.lap());
+		assertEquals(1, engine.getCompletedLaps());
+		assertEquals(150000, engine.getLastLapTime());
+		assertEquals(300, engine.getLastLapDistance(), DELTA);
+		assertEquals(0, engine.getLapDistance(), DELTA);
+		assertEquals(0, engine.getLapTime(START + 150000));
+
+		// no new point, no empty lap
+		assertFalse(engine.lap());
+		run(engine, 310, 400);
+		assertTrue(engine.lap());
+		assertEquals(50000, engine.getLastLapTime());
+		assertEquals(100, engine.getLastLapDistance(), DELTA);
+	}
+
+	@Test
+	public void autoLapAfterManualLap() {
+		LapEngine engine = new LapEngine();
+		engine.setLapLength(1000);
+		run(engine, 0, 300);
+		engine.lap();
+		run(engine, 310, 1300);
+		assertEquals(2, engine.getCompletedLaps());
+		assertEquals(1000, engine.getLastLapDistance(), DELTA);
+		assertEquals(500000, engine.getLastLapTime());
+	}
+}
@@ -0,0 +1,108 @@
+package org.meulenhoff.pebblemytracks;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.management.ManagementFactory;
+import java.util.TimeZone;
+
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.meulenhoff.pebblemytracks.MyAppSettings.ParameterType;
+
+// allocation microbenchmark of one update tick. Measures the bytes the
+// current thread allocates per call with the HotSpot thread allocation
+// counter, after a warm-up so class loading and buffer growth are excluded.
+public class TickAllocationTest {
+	private static final int WARMUP = 20000;
+	private static final int RUNS = 100000;
+
+	private static TimeZone defaultTimeZone;
+	private static com.sun.management.ThreadMXBean threads;
+
+	@BeforeClass
+	public static void setUp() {
+		defaultTimeZone = TimeZone.getDefault();
+		TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		threads = (com.sun.management.ThreadMXBean)bean;
+		Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+	}
+
+	@AfterClass
+	public static void tearDown() {
+		TimeZone.setDefault(defaultTimeZone);
+	}
+
+	private interface Tick {
+		void run(int i);
+	}
+
+	// bytes allocated per run of the tick
+	private static double measure(Tick tick) {
+		for ( int i = 0; i < WARMUP; i++ ) {
+			tick.run(i);
+		}
+		long thread = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(thread);
+		for ( int i = 0; i < RUNS; i++ ) {
+			tick.run(i);
+		}
+		return (double)( threads.getThreadAllocatedBytes(thread) - before ) / RUNS;
+	}
+
+	private static SportsData createData() {
+		SportsData data = new SportsData();
+		data.setSpeed(3.4);
+		data.setAvgspeed(3.1);
+		data.setAvgmovingspeed(3.3);
+		data.setMaxspeed(7.9);
+		data.setDistance(12345.6);
+		data.setDistanceToStart(2345.6);
+		data.setTotaltime(4321000);
+		data.setTotalmovingtime(4000000);
+		data.setTotalTimeFromStart(4500000);
+		data.setStartTime(1400000000000L);
+		data.setStopTime(1400004321000L);
+		data.setEtaStart(1400005000000L);
+		data.setPace(0.294);
+		data.setElevationGain(1234);
+		data.setGrade(4.2);
+		data.setVerticalspeed(310);
+		data.setLapTime(300000);
+		data.setLapDistance(1000);
+		data.setLapAvgspeed(3.3);
+		return data;
+	}
+
+	@Test
+	public void renderAllocatesNothing() {
+		final DisplayPlan plan = new DisplayPlan(ParameterType.values(), true);
+		final SportsData data = createData();
+		final FieldFormatter out = new FieldFormatter();
+		double bytes = measure(new Tick() {
+			public void run(int i) {
+				data.setDistance(i);
+				plan.render(data, out);
+			}
+		});
+		assertEquals(0, bytes, 1);
+	}
+
+	@Test
+	public void encodeAllocatesNothing() {
+		final DisplayPlan plan = new DisplayPlan(ParameterType.values(), false);
+		final SportsData data = createData();
+		final BinaryFieldEncoder out = new BinaryFieldEncoder();
+		double bytes = measure(new Tick() {
+			public void run(int i) {
+				data.setDistance(i);
+				plan.encode(data, out);
+			}
+		});
+		assertEquals(0, bytes, 1);
+	}
+}
@@ -0,0 +1,165 @@
+package org.meulenhoff.pebblemytracks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TrackPointStoreTest {
+	private static final double DELTA = 1e-9;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File directory;
+	private TrackPointStore store;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = new File(folder.getRoot(), "trackpoints");
+		store = new TrackPointStore(directory);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		if ( store != null ) {
+			store.close();
+		}
+	}
+
+	// point i of a track: one point per second and per 3 m
+	private boolean append(long trackId, long pointId) throws IOException {
+		return store.append(trackId, pointId, 1000 * pointId, 52 + pointId * 1e-5, 4.9, 10 + pointId, 2.5f, Float.NaN, 3 * pointId);
+	}
+
+	private void reopen() throws IOException {
+		store.close();
+		store = new TrackPointStore(directory);
+	}
+
+	@Test
+	public void appendAndRead() throws IOException {
+		assertTrue(append(1, 7));
+		assertEquals(1, store.size());
+		assertEquals(1, store.getTrackId(0));
+		assertEquals(7, store.getPointId(0));
+		assertEquals(7000, store.getTime(0));
+		assertEquals(52.00007, store.getLatitude(0), DELTA);
+		assertEquals(4.9, store.getLongitude(0), DELTA);
+		assertEquals(17, store.getAltitude(0), DELTA);
+		assertEquals(2.5, store.getSpeed(0), DELTA);
+		assertTrue(Float.isNaN(store.getBearing(0)));
+		assertEquals(21, store.getDistance(0), DELTA);
+	}
+
+	@Test
+	public void keepsTrackAndPointOrder() throws IOException {
+		assertTrue(append(2, 10));
+		assertFalse(append(2, 10));
+		assertFalse(append(2, 9));
+		assertFalse(append(1, 11));
+		assertTrue(append(2, 11));
+		assertTrue(append(3, 1));
+		assertEquals(3, store.size());
+	}
+
+	@Test
+	public void findsTheRowsOfATrack() throws IOException {
+		for ( long trackId = 1; trackId <= 5; trackId += 2 ) {
+			for ( long pointId = 1; pointId <= 10; pointId++ ) {
+				append(trackId, pointId);
+			}
+		}
+		assertEquals(0, store.firstRow(1));
+		assertEquals(10, store.endRow(1));
+		assertEquals(-1, store.firstRow(2));
+		assertEquals(10, store.firstRow(3));
+		assertEquals(20, store.endRow(3));
+		assertEquals(30, store.endRow(5));
+		assertEquals(-1, store.firstRow(6));
+	}
+
+	@Test
+	public void survivesReopen() throws IOException {
+		for ( long pointId = 1; pointId <= 100; pointId++ ) {
+			append(4, pointId);
+		}
+		store.flush();
+		reopen();
+		assertEquals(100, store.size());
+		assertEquals(100, store.getPointId(99));
+		assertEquals(300, store.getDistance(99), DELTA);
+		assertFalse(append(4, 100));
+		assertTrue(append(4, 101));
+	}
+
+	@Test
+	public void growsBeyondTheInitialMapping() throws IOException {
+		int rows = TrackPointStore.INITIAL_ROWS * 2 + 1;
+		for ( long pointId = 0; pointId < rows; pointId++ ) {
+			assertTrue(append(1, pointId));
+		}
+		reopen();
+		assertEquals(rows, store.size());
+		assertEquals(rows - 1, store.getPointId(rows - 1));
+	}
+
+	@Test
+	public void ignoresAShorterColumn() throws IOException {
+		for ( long pointId = 1; pointId <= 10; pointId++ ) {
+			append(1, pointId);
+		}
+		store.close();
+		store = null;
+		// a store of an older version without the distance column
+		assertTrue(new File(directory, "distance").delete());
+		store = new TrackPointStore(directory);
+		assertEquals(0, store.size());
+		assertTrue(append(1, 1));
+	}
+
+	@Test
+	public void pruneKeepsWholeRecentTracks() throws IOException {
+		for ( long trackId = 1; trackId <= 4; trackId++ ) {
+			for ( long pointId = 1; pointId <= 10; pointId++ ) {
+				append(trackId, pointId);
+			}
+		}
+		assertEquals(0, store.prune(40));
+		// 25 rows would split track 2, only tracks 3 and 4 are kept
+		assertEquals(20, store.prune(25));
+		assertEquals(20, store.size());
+		assertEquals(-1, store.firstRow(2));
+		assertEquals(0, store.firstRow(3));
+		assertEquals(10, store.firstRow(4));
+		assertEquals(10, store.getPointId(19));
+		assertEquals(30, store.getDistance(19), DELTA);
+
+		reopen();
+		assertEquals(20, store.size());
+		assertTrue(append(5, 1));
+		assertEquals(20, store.firstRow(5));
+	}
+
+	@Test
+	public void pruneKeepsTheNewestTrack() throws IOException {
+		for ( long pointId = 1; pointId <= 10; pointId++ ) {
+			append(1, pointId);
+		}
+		for ( long pointId = 1; pointId <= 30; pointId++ ) {
+			append(2, pointId);
+		}
+		assertEquals(10, store.prune(20));
+		assertEquals(30, store.size());
+		assertEquals(0, store.firstRow(2));
+		assertEquals(0, store.prune(0));
+	}
+}
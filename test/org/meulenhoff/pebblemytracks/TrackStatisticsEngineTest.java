@@ -0,0 +1,68 @@
+package org.meulenhoff.pebblemytracks;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+
+public class TrackStatisticsEngineTest {
+	private static final double DELTA = 1e-6;
+
+	@Test
+	public void gradeOfDenseTrackPoints() {
+		TrackStatisticsEngine engine = new TrackStatisticsEngine();
+		// a point every 0.5 m: 100 m up at 4%, then 200 m down at 2%
+		double d = 0, elevation = 100;
+		long time = 0;
+		for ( int i = 0; i < 200; i++ ) {
+			engine.add(d, elevation, 2, time);
+			d += 0.5;
+			elevation += 0.02;
+			time += 250;
+		}
+		engine.add(d, elevation, 2, time);
+		assertEquals(4, engine.getGrade(), DELTA);
+		for ( int i = 0; i < 400; i++ ) {
+			d += 0.5;
+			elevation -= 0.01;
+			time += 250;
+			engine.add(d, elevation, 2, time);
+		}
+		assertEquals(-2, engine.getGrade(), DELTA);
+		assertEquals(4, engine.getMaxGrade(), DELTA);
+		assertEquals(-2, engine.getMinGrade(), DELTA);
+		assertEquals(100, engine.getMinElevation(), DELTA);
+		assertEquals(104, engine.getMaxElevation(), DELTA);
+	}
+
+	@Test
+	public void noGradeBeforeTheWindowIsCovered() {
+		TrackStatisticsEngine engine = new TrackStatisticsEngine();
+		for ( int i = 0; i < 50; i++ ) {
+			engine.add(i, i, 1, i * 1000);
+		}
+		assertEquals(0, engine.getGrade(), DELTA);
+		assertEquals(0, engine.getMaxGrade(), DELTA);
+	}
+
+	@Test
+	public void unknownElevationAndSpeed() {
+		TrackStatisticsEngine engine = new TrackStatisticsEngine();
+		engine.add(0, Double.NaN, 3, 0);
+		engine.add(10, Double.NaN, -1, 1000);
+		assertEquals(3, engine.getMaxSpeed(), DELTA);
+		assertEquals(0, engine.getMaxElevation(), DELTA);
+	}
+
+	@Test
+	public void seedFromMyTracks() {
+		TrackStatisticsEngine engine = new TrackStatisticsEngine();
+		engine.seed(5, 50, 80, -0.03, 0.06);
+		engine.add(0, 90, 4, 0);
+		assertEquals(5, engine.getMaxSpeed(), DELTA);
+		assertEquals(50, engine.getMinElevation(), DELTA);
+		assertEquals(90, engine.getMaxElevation(), DELTA);
+		assertEquals(-3, engine.getMinGrade(), DELTA);
+		assertEquals(6, engine.getMaxGrade(), DELTA);
+	}
+}